@@ -0,0 +1,376 @@
+package Sokoban;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Map.Entry;
+
+/**
+ * An anytime weighted A* search, in the manner of ARA*. The states are
+ * ordered by f = g + w * h, where g is the number of pushes and h the goal
+ * distance. A large weight w finds a first solution quickly, and the search
+ * then goes on with smaller and smaller weights, each solution with fewer
+ * pushes than the last being published to the SolutionListener of the
+ * configuration.
+ *
+ * The open list and the closed set are kept when the weight is decreased.
+ * A node reached by a shorter path is moved below its new parent in the
+ * NodeStore and opened again, unless it already was expanded with the
+ * current weight; such nodes are set aside and opened when the weight is
+ * decreased next. A weight is done when no state in the open list has a
+ * smaller f than the pushes of the best solution.
+ *
+ * The goal distance is greedy rather than a lower bound, so it only orders
+ * the states. States are dropped when their pushes plus State.getLowerBound()
+ * reach the pushes of the best solution, which never drops a state leading to
+ * a better one. The last search, with the weight 1, orders the states by that
+ * lower bound instead of the goal distance, so when it is done the best
+ * solution is push optimal.
+ */
+public class AnytimeSearch {
+    /**
+     * The default weight of the first search.
+     */
+    static final float initialWeight = 5;
+
+    /**
+     * The default factor the weight is multiplied by when decreased.
+     */
+    static final float weightFactor = 0.6f;
+
+    /**
+     * The map to solve.
+     */
+    private Map map;
+
+    /**
+     * The options used for searching.
+     */
+    private SolverConfig config;
+
+    /**
+     * The token used for cancelling the search.
+     */
+    private CancellationToken token;
+
+    /**
+     * The nodes of the search.
+     */
+    private NodeStore store;
+
+    /**
+     * The open list. It may hold stale states of nodes that have since been
+     * reached by a shorter path.
+     */
+    private PriorityQueue<State> queue;
+
+    /**
+     * The nodes expanded with the current weight.
+     */
+    private BitSet closed;
+
+    /**
+     * The expanded nodes reached by a shorter path with the current weight.
+     */
+    private List<Integer> inconsistent;
+
+    /**
+     * The current weight.
+     */
+    private float weight;
+
+    /**
+     * The factor the weight is multiplied by when decreased.
+     */
+    private float factor;
+
+    /**
+     * The end state of the best solution, or null.
+     */
+    private State endState;
+
+    /**
+     * The number of pushes of the best solution, or Integer.MAX_VALUE.
+     */
+    private int bound;
+
+    /**
+     * The number of expanded nodes in all runs.
+     */
+    private int numExpanded;
+
+    /**
+     * The number of inspected nodes in all runs.
+     */
+    private int numInspected;
+
+    /**
+     * The largest size of the open list.
+     */
+    private int maxOpen;
+
+    /**
+     * Create a new AnytimeSearch.
+     *
+     * @param map The map to solve.
+     * @param config The options to use.
+     * @param token The token used for cancelling the search.
+     */
+    public AnytimeSearch(Map map, SolverConfig config,
+            CancellationToken token) {
+        this.map = map;
+        this.config = config;
+        this.token = token;
+        store = new NodeStore(map, map.getBoxes().size(),
+                config.getInitialCapacity());
+        closed = new BitSet();
+        inconsistent = new ArrayList<Integer>();
+        endState = null;
+        bound = Integer.MAX_VALUE;
+        numExpanded = 0;
+        numInspected = 0;
+        maxOpen = 0;
+        setWeights(initialWeight, weightFactor);
+
+        State root = new State(map.getStart(), map.getBoxes(), map);
+        root.setNode(store.add(root, -1));
+        queue.add(root);
+    }
+
+    /**
+     * Set the weights of the search. Must be called before the search is run.
+     *
+     * @param weight The weight of the first search, at least 1.
+     * @param factor The factor the weight is multiplied by when decreased,
+     * between 0 and 1.
+     */
+    public void setWeights(float weight, float factor) {
+        if (weight < 1)
+            throw new IllegalArgumentException("weight must be at least 1");
+        if (factor <= 0 || factor >= 1)
+            throw new IllegalArgumentException(
+                    "factor must be between 0 and 1");
+        this.weight = weight;
+        this.factor = factor;
+        PriorityQueue<State> old = queue;
+        queue = new PriorityQueue<State>(1000, getComparator(weight));
+        if (old != null)
+            queue.addAll(old);
+    }
+
+    /**
+     * @param weight The weight of the goal distance.
+     * @return a comparator ordering states by f, and by g if f is equal.
+     */
+    private static Comparator<State> getComparator(final float weight) {
+        return new Comparator<State>() {
+            public int compare(State a, State b) {
+                int cmp = Float.compare(f(a, weight), f(b, weight));
+                return cmp != 0 ? cmp : b.getNumMoves() - a.getNumMoves();
+            }
+        };
+    }
+
+    /**
+     * @param state A state.
+     * @param weight The weight of the goal distance.
+     * @return the f value of the state. With the weight 1, the lower bound
+     * of the state is used instead of its goal distance.
+     */
+    private static float f(State state, float weight) {
+        if (weight == 1)
+            return state.getNumMoves() + state.getLowerBound();
+        return state.getNumMoves() + weight * state.getGoalDistance();
+    }
+
+    /**
+     * @param state A state.
+     * @return true iff the state may lead to a solution with fewer pushes
+     * than the best one.
+     */
+    private boolean canImprove(State state) {
+        return state.getNumMoves() + state.getLowerBound() < bound;
+    }
+
+    /**
+     * @return the end state of the best solution, or null if no solution has
+     * been found.
+     */
+    public State getEndState() {
+        return endState;
+    }
+
+    /**
+     * @return the current weight.
+     */
+    public float getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return true iff the search with the weight 1 is done, so no better
+     * solution exists.
+     */
+    public boolean isFinished() {
+        return weight == 1 && isDone();
+    }
+
+    /**
+     * @return the number of expanded nodes in all runs.
+     */
+    public int getNumExpanded() {
+        return numExpanded;
+    }
+
+    /**
+     * @return the number of inspected nodes in all runs.
+     */
+    public int getNumInspected() {
+        return numInspected;
+    }
+
+    /**
+     * @return the largest size of the open list.
+     */
+    public int getMaxOpen() {
+        return maxOpen;
+    }
+
+    /**
+     * @return the number of nodes in the closed set.
+     */
+    public int getMaxClosed() {
+        return store.size();
+    }
+
+    /**
+     * @return true iff the search with the current weight is done.
+     */
+    private boolean isDone() {
+        return queue.isEmpty() || f(queue.peek(), weight) >= bound;
+    }
+
+    /**
+     * Run the search until it is finished, the time limit is reached or the
+     * token is cancelled.
+     *
+     * @param limit The time limit of this run.
+     * @return the number of nodes expanded in this run.
+     */
+    public int run(int limit) {
+        int numExpanded = 0;
+        int interval = config.getInterval();
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; !isFinished(); i++) {
+            if (i == interval) {
+                if (config.getPrintProgress())
+                    printInfo(start);
+                if (System.currentTimeMillis() - start >= limit ||
+                        token.isCancelled())
+                    break;
+                i = 0;
+            }
+
+            if (isDone()) {
+                decreaseWeight();
+                continue;
+            }
+
+            State curState = queue.poll();
+            int node = curState.getNode();
+            if (curState.getNumMoves() > store.getDepth(node) ||
+                    closed.get(node))
+                continue;
+
+            closed.set(node);
+            numExpanded++;
+            this.numExpanded++;
+            expand(curState);
+        }
+
+        if (config.getPrintProgress()) {
+            printInfo(start);
+            System.out.println();
+        }
+        return numExpanded;
+    }
+
+    private void printInfo(long start) {
+        System.out.printf("expanded: %6d, queue: %6d, weight: %.2f, " +
+                "pushes: %4d, time: %2.2f s\r", numExpanded, queue.size(),
+                weight, endState == null ? -1 : bound,
+                (float)(System.currentTimeMillis()-start)/1000);
+    }
+
+    /**
+     * Generate the children of a state, opening those that are new or reached
+     * by a shorter path.
+     *
+     * @param curState The state to expand.
+     */
+    private void expand(State curState) {
+        int node = curState.getNode();
+        for (Entry<Direction, Point> move : curState.getAvailableMoves()) {
+            State nextState = State.getViewAfterMove(curState, move);
+            numInspected++;
+            if (!canImprove(nextState))
+                continue;
+
+            int next = store.add(nextState, node);
+            if (next < 0) {
+                next = store.find(nextState);
+                if (nextState.getNumMoves() >= store.getDepth(next))
+                    continue;
+                store.reparent(next, nextState, node);
+                if (closed.get(next)) {
+                    inconsistent.add(next);
+                    continue;
+                }
+            }
+            nextState.setNode(next);
+
+            if (nextState.isGoalReached()) {
+                bound = nextState.getNumMoves();
+                endState = store.getState(next);
+                if (config.getSolutionListener() != null)
+                    config.getSolutionListener().solutionFound(endState,
+                            weight);
+                continue;
+            }
+            queue.add(nextState);
+            if (queue.size() > maxOpen)
+                maxOpen = queue.size();
+        }
+    }
+
+    /**
+     * Decrease the weight and reorder the open list by it. The set aside
+     * nodes are opened again, stale states and states that cannot lead to a
+     * better solution are dropped, and the closed set is cleared.
+     */
+    private void decreaseWeight() {
+        weight = Math.max(1, weight * factor);
+        if (weight < 1.05f)
+            weight = 1;
+
+        PriorityQueue<State> old = queue;
+        queue = new PriorityQueue<State>(Math.max(old.size(), 1000),
+                getComparator(weight));
+        for (State state : old) {
+            int node = state.getNode();
+            if (state.getNumMoves() == store.getDepth(node) &&
+                    !closed.get(node) && canImprove(state))
+                queue.add(state);
+        }
+        for (int node : inconsistent) {
+            State state = store.getView(node);
+            if (canImprove(state))
+                queue.add(state);
+        }
+        inconsistent.clear();
+        closed.clear();
+    }
+}
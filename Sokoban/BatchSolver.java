@@ -0,0 +1,402 @@
+package Sokoban;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A class for solving a range of puzzles from a collection file in a single
+ * JVM. The puzzles are solved in parallel and a result line is written for
+ * each puzzle as soon as it has been solved.
+ */
+public class BatchSolver {
+    /**
+     * The available output formats.
+     */
+    public enum Format {
+        CSV, JSON;
+    };
+
+    /**
+     * The result of solving a single puzzle.
+     */
+    public static class Result {
+        /**
+         * The number of the puzzle.
+         */
+        final int id;
+
+        /**
+         * Tells whether a solution was found.
+         */
+        final boolean solved;
+
+        /**
+         * Tells whether the solution was verified by replaying it.
+         */
+        final boolean verified;
+
+        /**
+         * The time spent solving the puzzle, in milliseconds.
+         */
+        final long time;
+
+        /**
+         * The number of expanded nodes.
+         */
+        final int expanded;
+
+        /**
+         * The number of box pushes in the solution.
+         */
+        final int pushes;
+
+        /**
+         * The number of player moves in the solution.
+         */
+        final int moves;
+
+        /**
+         * Create a new Result.
+         *
+         * @param id The number of the puzzle.
+         * @param solved true iff a solution was found.
+         * @param verified true iff the solution was verified.
+         * @param time The time spent solving the puzzle.
+         * @param expanded The number of expanded nodes.
+         * @param pushes The number of box pushes in the solution.
+         * @param moves The number of player moves in the solution.
+         */
+        public Result(int id, boolean solved, boolean verified, long time,
+                int expanded, int pushes, int moves) {
+            this.id = id;
+            this.solved = solved;
+            this.verified = verified;
+            this.time = time;
+            this.expanded = expanded;
+            this.pushes = pushes;
+            this.moves = moves;
+        }
+
+        /**
+         * @param format The format to use.
+         * @return this result formatted as a single line.
+         */
+        public String format(Format format) {
+            if (format == Format.JSON)
+                return String.format("{\"id\": %d, \"solved\": %b, " +
+                        "\"verified\": %b, \"time\": %d, \"expanded\": %d, " +
+                        "\"pushes\": %d, \"moves\": %d}", id, solved, verified,
+                        time, expanded, pushes, moves);
+            return String.format("%d,%b,%b,%d,%d,%d,%d", id, solved, verified,
+                    time, expanded, pushes, moves);
+        }
+    }
+
+    /**
+     * The header line written before the results in CSV format.
+     */
+    static final String csvHeader = "id,solved,verified,time,expanded,pushes,moves";
+
+    /**
+     * The collection file to read puzzles from.
+     */
+    private String file;
+
+    /**
+     * The options used for solving each puzzle.
+     */
+    private SolverConfig config;
+
+    /**
+     * The number of puzzles to solve in parallel.
+     */
+    private int threads;
+
+    /**
+     * The directory search traces are written to, or null if no traces
+     * should be recorded.
+     */
+    private String traceDir;
+
+    /**
+     * The directory checkpoints are written to, or null if no checkpoints
+     * should be written.
+     */
+    private String checkpointDir;
+
+    /**
+     * Create a new BatchSolver.
+     *
+     * @param file The collection file to read puzzles from.
+     * @param config The options used for solving each puzzle.
+     * @param threads The number of puzzles to solve in parallel.
+     */
+    public BatchSolver(String file, SolverConfig config, int threads) {
+        this.file = file;
+        this.config = config;
+        this.threads = threads;
+    }
+
+    /**
+     * Record a search trace for each puzzle. The trace of puzzle n is written
+     * to the file n.trace in the given directory.
+     *
+     * @param traceDir The directory to write traces to, or null.
+     */
+    public void setTraceDir(String traceDir) {
+        this.traceDir = traceDir;
+    }
+
+    /**
+     * Write checkpoints of the searches of each puzzle. The checkpoints of
+     * puzzle n are written to files named n.checkpoint in the given
+     * directory. Searches are resumed from the checkpoints if they exist, and
+     * the checkpoints are removed once the puzzle is solved.
+     *
+     * @param checkpointDir The directory to write checkpoints to, or null.
+     */
+    public void setCheckpointDir(String checkpointDir) {
+        this.checkpointDir = checkpointDir;
+    }
+
+    /**
+     * Solve a single puzzle from the collection.
+     *
+     * @param id The number of the puzzle to solve.
+     * @return the result, or null if no puzzle with the given number exists.
+     */
+    public Result solve(int id) {
+        String mapString = Puzzle.getPuzzleFromFile(file, id);
+        if (mapString == null)
+            return null;
+
+        Map map = Map.parse(mapString);
+        SolverConfig config = this.config;
+        if (checkpointDir != null)
+            config = config.toBuilder()
+                .checkpointFile(new File(checkpointDir, id + ".checkpoint")
+                        .getPath())
+                .build();
+
+        SolveResult result;
+        if (traceDir == null) {
+            result = Solver.solve(map, config);
+        } else {
+            try (TraceRecorder trace = new TraceRecorder(
+                        new File(traceDir, id + ".trace").getPath())) {
+                result = Solver.solve(map, config.toBuilder().trace(trace)
+                        .build());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        if (result.isOutOfBudget())
+            System.err.println(id + ": out of memory budget");
+        boolean verified = result.isSolved() &&
+            new Verifier(map).verify(result.getPath()).isSolution();
+        return new Result(id, result.isSolved(), verified, result.getTime(),
+                result.getNumExpanded(), result.getNumPushes(),
+                result.getNumMoves());
+    }
+
+    /**
+     * Solve the puzzles in the given range. Each result is written to the
+     * given stream as soon as it is available, so the results are not
+     * necessarily written in order. If metrics are collected with a period, a
+     * JSON snapshot of them is written to stderr once per period and once
+     * more when all puzzles are done.
+     *
+     * @param from The number of the first puzzle to solve.
+     * @param to The number of the last puzzle to solve.
+     * @param format The format of the written results.
+     * @param out The stream to write results to.
+     * @return the number of solved puzzles.
+     */
+    public int solve(int from, int to, final Format format,
+            final PrintStream out) throws InterruptedException {
+        ExecutorService searchPool = Executors.newFixedThreadPool(threads);
+        final ExecutorService writer = Executors.newSingleThreadExecutor();
+        final SearchMetrics metrics = config.getMetrics();
+        ScheduledExecutorService reporter = null;
+        List<Future<Result>> futures =
+            new LinkedList<Future<Result>>();
+
+        if (metrics != null && config.getMetricsPeriod() > 0) {
+            reporter = Executors.newSingleThreadScheduledExecutor();
+            reporter.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    System.err.println(metrics.toJson());
+                }
+            }, config.getMetricsPeriod(), config.getMetricsPeriod(),
+                TimeUnit.MILLISECONDS);
+        }
+
+        if (format == Format.CSV)
+            out.println(csvHeader);
+
+        for (int i = from; i <= to; i++) {
+            final int id = i;
+            futures.add(searchPool.submit(new Callable<Result>() {
+                public Result call() {
+                    final Result result = solve(id);
+                    if (result != null)
+                        writer.execute(new Runnable() {
+                            public void run() {
+                                out.println(result.format(format));
+                                out.flush();
+                            }
+                        });
+                    return result;
+                }
+            }));
+        }
+
+        int solved = 0;
+        try {
+            for (Future<Result> future : futures) {
+                Result result = future.get();
+                if (result != null && result.verified)
+                    solved++;
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            searchPool.shutdownNow();
+            writer.shutdown();
+            writer.awaitTermination(1, TimeUnit.MINUTES);
+            if (reporter != null) {
+                reporter.shutdownNow();
+                reporter.awaitTermination(1, TimeUnit.MINUTES);
+                System.err.println(metrics.toJson());
+            }
+        }
+        return solved;
+    }
+
+    /**
+     * Run the batch solver. Usage:
+     *
+     * BatchSolver <file> <from> <to> [-t threads] [-l limit] [-o optimize]
+     *     [-m metrics] [-r trace dir] [-b budget] [-c checkpoint dir]
+     *     [-f csv|json]
+     *
+     * With -m, metrics shared by all searches are collected and a JSON
+     * snapshot is written to stderr with the given period in milliseconds,
+     * and once more at the end. Only the default and scheduled strategies
+     * record metrics, so -m cannot be combined with the others.
+     * With -r, a search trace of each puzzle is written to the given
+     * directory, see TraceReader. With -b, each search is limited to the
+     * given number of megabytes, and spills part of its open list to disk
+     * when it exceeds them. With -c, each search is checkpointed every
+     * minute and when it stops, and a later run with the same directory
+     * resumes the unsolved puzzles.
+     */
+    public static void main(String[] args) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int limit = Solver.searchLimit;
+        int optimize = 0;
+        int metricsPeriod = 0;
+        String traceDir = null;
+        long budget = 0;
+        String checkpointDir = null;
+        SolverConfig.Strategy strategy = SolverConfig.Strategy.DEFAULT;
+        Format format = Format.CSV;
+        int batchSize = 1;
+        int from = 0;
+        int to = 0;
+
+        if (args.length < 3) {
+            System.err.println("usage: BatchSolver <file> <from> <to> " +
+                    "[-t threads] [-l limit] [-o optimize] [-m metrics] " +
+                    "[-r trace dir] [-b budget] [-c checkpoint dir] " +
+                    "[-s default|bidirectional|anytime|scheduled|ida] " +
+                    "[-e batch] [-f csv|json]");
+            System.exit(1);
+        }
+
+        try {
+            from = Integer.parseInt(args[1]);
+            to = Integer.parseInt(args[2]);
+
+            for (int i = 3; i < args.length; i++) {
+                if (i + 1 >= args.length) {
+                    System.err.println("Missing value for " + args[i] + ".");
+                    System.exit(1);
+                }
+
+                if (args[i].equals("-t"))
+                    threads = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-l"))
+                    limit = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-o"))
+                    optimize = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-m"))
+                    metricsPeriod = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-r"))
+                    traceDir = args[++i];
+                else if (args[i].equals("-b"))
+                    budget = Long.parseLong(args[++i]) << 20;
+                else if (args[i].equals("-c"))
+                    checkpointDir = args[++i];
+                else if (args[i].equals("-s"))
+                    strategy = SolverConfig.Strategy.valueOf(
+                            args[++i].toUpperCase());
+                else if (args[i].equals("-e"))
+                    batchSize = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-f"))
+                    format = Format.valueOf(args[++i].toUpperCase());
+                else {
+                    System.err.println("Invalid option specified.");
+                    System.exit(1);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid argument: " + e.getMessage());
+            System.exit(1);
+        }
+
+        if (metricsPeriod > 0 &&
+                strategy != SolverConfig.Strategy.DEFAULT &&
+                strategy != SolverConfig.Strategy.SCHEDULED) {
+            System.err.println("Metrics are only recorded by the default " +
+                    "and scheduled strategies.");
+            System.exit(1);
+        }
+
+        SolverConfig config = new SolverConfig.Builder()
+            .timeLimit(limit)
+            .optimizeTime(optimize)
+            .moveOptimal(optimize > 0)
+            .metrics(metricsPeriod > 0 ? new SearchMetrics() : null)
+            .metricsPeriod(metricsPeriod)
+            .memoryBudget(budget)
+            .checkpointPeriod(checkpointDir != null ? 60000 : 0)
+            .strategy(strategy)
+            .batchSize(batchSize)
+            .build();
+        BatchSolver batch = new BatchSolver(args[0], config, threads);
+        batch.setTraceDir(traceDir);
+        batch.setCheckpointDir(checkpointDir);
+        long time = System.currentTimeMillis();
+        int solved = 0;
+        try {
+            solved = batch.solve(from, to, format, System.out);
+        } catch (InterruptedException e) {
+            System.exit(1);
+        }
+        time = System.currentTimeMillis() - time;
+
+        System.err.printf("solved: %d of %d, time: %2.2f s\n", solved,
+                to - from + 1, (float)time/1000);
+    }
+}
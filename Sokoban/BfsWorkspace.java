@@ -0,0 +1,153 @@
+package Sokoban;
+
+import java.util.Arrays;
+
+/**
+ * The scratch buffers of a breadth first search over the cells of a map: a
+ * ring buffer queue of cells and a visited array stamped with a generation,
+ * so that starting a new search does not clear any array. The distance of
+ * each visited cell may be kept as well.
+ *
+ * Each thread has its own workspace, grown to the largest map it has seen, so
+ * the searches of a thread allocate nothing. A workspace holds a single
+ * search at a time, so a routine using it must not call another routine that
+ * uses it before it is done.
+ */
+public class BfsWorkspace {
+    /**
+     * The workspace of each thread.
+     */
+    private static final ThreadLocal<BfsWorkspace> workspaces =
+        new ThreadLocal<BfsWorkspace>() {
+            @Override
+            protected BfsWorkspace initialValue() {
+                return new BfsWorkspace(64);
+            }
+        };
+
+    /**
+     * The queued cells, a power of two long.
+     */
+    private int[] queue;
+
+    /**
+     * The index of the first queued cell.
+     */
+    private int head;
+
+    /**
+     * The number of queued cells.
+     */
+    private int size;
+
+    /**
+     * The generation in which each cell was last visited.
+     */
+    private int[] visited;
+
+    /**
+     * The distance of each visited cell.
+     */
+    private int[] distances;
+
+    /**
+     * The current generation.
+     */
+    private int generation;
+
+    /**
+     * Create a new BfsWorkspace.
+     *
+     * @param numCells The number of cells of the largest map to search.
+     */
+    private BfsWorkspace(int numCells) {
+        int capacity = Integer.highestOneBit(Math.max(numCells, 2) - 1) << 1;
+        queue = new int[capacity];
+        visited = new int[numCells];
+        distances = new int[numCells];
+        generation = 0;
+    }
+
+    /**
+     * Get the workspace of the current thread and start a new search in it.
+     *
+     * @param numCells The number of cells of the map to search.
+     * @return the workspace, with an empty queue and no visited cells.
+     */
+    public static BfsWorkspace get(int numCells) {
+        BfsWorkspace workspace = workspaces.get();
+        if (workspace.visited.length < numCells) {
+            workspace = new BfsWorkspace(numCells);
+            workspaces.set(workspace);
+        }
+        workspace.clear();
+        return workspace;
+    }
+
+    /**
+     * Empty the queue and forget all visited cells.
+     */
+    public void clear() {
+        head = 0;
+        size = 0;
+        if (++generation == 0) {
+            Arrays.fill(visited, 0);
+            generation = 1;
+        }
+    }
+
+    /**
+     * Add a cell to the end of the queue. Since a cell is only queued when
+     * it is first visited, the queue never holds more cells than the map.
+     *
+     * @param cell The cell.
+     */
+    public void add(int cell) {
+        queue[(head + size++) & (queue.length - 1)] = cell;
+    }
+
+    /**
+     * @return the first cell of the queue, which is removed.
+     */
+    public int poll() {
+        int cell = queue[head];
+        head = (head + 1) & (queue.length - 1);
+        size--;
+        return cell;
+    }
+
+    /**
+     * @return true iff the queue is empty.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Mark a cell as visited and queue it.
+     *
+     * @param cell The cell.
+     * @param distance The distance of the cell.
+     */
+    public void visit(int cell, int distance) {
+        visited[cell] = generation;
+        distances[cell] = distance;
+        add(cell);
+    }
+
+    /**
+     * @param cell A cell.
+     * @return true iff the cell was visited in the current search.
+     */
+    public boolean isVisited(int cell) {
+        return visited[cell] == generation;
+    }
+
+    /**
+     * @param cell A visited cell.
+     * @return the distance the cell was visited with.
+     */
+    public int getDistance(int cell) {
+        return distances[cell];
+    }
+}
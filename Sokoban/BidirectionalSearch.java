@@ -0,0 +1,387 @@
+package Sokoban;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Map.Entry;
+
+/**
+ * A bidirectional search for a solution of a map. A forward search pushes
+ * boxes from the start state, while a reverse search pulls boxes from every
+ * goal state, i.e. every state with all boxes on goals and the player in one
+ * of the regions next to them. The search with the smaller open list is
+ * expanded next.
+ *
+ * Each direction keeps its nodes in its own NodeStore, and both stores index
+ * their nodes by the same key: the sorted boxes and the minimum cell reachable
+ * by the player. The searches meet when a node generated by one of them is
+ * found in the closed set of the other, i.e. when both have reached the same
+ * boxes with the player in the same region. Since any cell of a region can be
+ * reached from any other, the pushes of the forward path can be followed by
+ * the pulls of the reverse path, done backwards as pushes.
+ *
+ * The reverse search is ordered by the sum of the distances of the boxes to
+ * the nearest start position of a box, ignoring all other boxes.
+ */
+public class BidirectionalSearch {
+    /**
+     * The map to solve.
+     */
+    private Map map;
+
+    /**
+     * The options used for searching.
+     */
+    private SolverConfig config;
+
+    /**
+     * The token used for cancelling the search.
+     */
+    private CancellationToken token;
+
+    /**
+     * The nodes of the forward search.
+     */
+    private NodeStore forward;
+
+    /**
+     * The nodes of the reverse search.
+     */
+    private NodeStore reverse;
+
+    /**
+     * The open list of the forward search.
+     */
+    private Frontier queue;
+
+    /**
+     * The open list of the reverse search. Each entry holds the heuristic
+     * value of a node in its upper half and the node id in its lower half.
+     */
+    private PriorityQueue<Long> reverseQueue;
+
+    /**
+     * The distance of each cell to the nearest start position of a box.
+     */
+    private int[] distances;
+
+    /**
+     * The end state, or null if no solution has been found.
+     */
+    private State endState;
+
+    /**
+     * The number of nodes expanded by the forward search.
+     */
+    private int numExpanded;
+
+    /**
+     * The number of nodes expanded by the reverse search.
+     */
+    private int numReverseExpanded;
+
+    /**
+     * The number of inspected nodes in both directions.
+     */
+    private int numInspected;
+
+    /**
+     * The largest sum of the sizes of the open lists.
+     */
+    private int maxOpen;
+
+    /**
+     * Create a new BidirectionalSearch.
+     *
+     * @param map The map to solve.
+     * @param config The options to use.
+     * @param token The token used for cancelling the search.
+     */
+    public BidirectionalSearch(Map map, SolverConfig config,
+            CancellationToken token) {
+        this.map = map;
+        this.config = config;
+        this.token = token;
+        int numBoxes = map.getBoxes().size();
+        forward = new NodeStore(map, numBoxes, config.getInitialCapacity());
+        reverse = new NodeStore(map, numBoxes, config.getInitialCapacity());
+        queue = new Frontier(Solver.getHeuristic(0), forward);
+        if (config.getMemoryBudget() > 0)
+            queue.setBudget(config.getMemoryBudget(),
+                    config.getSpillDirectory() == null ? null :
+                    new File(config.getSpillDirectory()));
+        reverseQueue = new PriorityQueue<Long>();
+        distances = getDistances(map);
+        endState = null;
+        numExpanded = 0;
+        numReverseExpanded = 0;
+        numInspected = 0;
+        maxOpen = 0;
+
+        State root = new State(map.getStart(), map.getBoxes(), map);
+        root.setNode(forward.add(root, -1));
+        queue.add(root);
+
+        /* A goal state for each region next to the goals. */
+        Point[] goals = map.getGoals().toArray(new Point[0]);
+        for (Point goal : goals)
+            for (Direction d : Direction.getArray()) {
+                Point p = map.getPoint(goal.x + d.dx, goal.y + d.dy);
+                if (map.isWall(p) || map.isGoal(p))
+                    continue;
+                State goalState = new State(p, goals.clone(), map);
+                int node = reverse.add(goalState, -1);
+                if (node < 0)
+                    continue;
+                int other = forward.find(goalState);
+                if (other >= 0) {
+                    endState = stitch(other, node);
+                    return;
+                }
+                openReverse(goalState, node);
+            }
+    }
+
+    /**
+     * Find the distance of each cell to the nearest start position of a box,
+     * walking around walls only.
+     *
+     * @param map The map.
+     * @return the distance of each cell, or the number of cells if a cell
+     * cannot be reached.
+     */
+    private static int[] getDistances(Map map) {
+        int[] distances = new int[map.getNumCells()];
+        Arrays.fill(distances, map.getNumCells());
+        int[] cells = new int[map.getNumCells()];
+        int head = 0;
+        int tail = 0;
+        for (Point box : map.getBoxes()) {
+            int cell = map.getIndex(box);
+            distances[cell] = 0;
+            cells[tail++] = cell;
+        }
+
+        while (head < tail) {
+            int cell = cells[head++];
+            for (Direction d : Direction.getArray()) {
+                int next = cell + map.getOffset(d);
+                if (distances[next] == map.getNumCells() &&
+                        !map.isWall(map.getPoint(next))) {
+                    distances[next] = distances[cell] + 1;
+                    cells[tail++] = next;
+                }
+            }
+        }
+        return distances;
+    }
+
+    /**
+     * Add a node to the open list of the reverse search.
+     *
+     * @param state The state of the node.
+     * @param node The id of the node in the reverse store.
+     */
+    private void openReverse(State state, int node) {
+        long h = 0;
+        for (Point box : state.getBoxes())
+            h += distances[map.getIndex(box)];
+        reverseQueue.add((h << 32) | node);
+    }
+
+    /**
+     * @return the end state, or null if no solution has been found.
+     */
+    public State getEndState() {
+        return endState;
+    }
+
+    /**
+     * @return true iff the whole reachable state space of either direction
+     * has been searched.
+     */
+    public boolean isExhausted() {
+        return queue.isEmpty() || reverseQueue.isEmpty();
+    }
+
+    /**
+     * @return true iff the search stopped because the store of the forward
+     * search outgrew the memory budget.
+     */
+    public boolean isOutOfBudget() {
+        return queue.isOutOfBudget();
+    }
+
+    /**
+     * @return the number of nodes expanded by both directions.
+     */
+    public int getNumExpanded() {
+        return numExpanded + numReverseExpanded;
+    }
+
+    /**
+     * @return the number of nodes expanded by the reverse search.
+     */
+    public int getNumReverseExpanded() {
+        return numReverseExpanded;
+    }
+
+    /**
+     * @return the number of inspected nodes in both directions.
+     */
+    public int getNumInspected() {
+        return numInspected;
+    }
+
+    /**
+     * @return the largest sum of the sizes of the open lists.
+     */
+    public int getMaxOpen() {
+        return maxOpen;
+    }
+
+    /**
+     * @return the number of nodes in both closed sets.
+     */
+    public int getMaxClosed() {
+        return forward.size() + reverse.size();
+    }
+
+    /**
+     * Run the search until a solution is found, either open list is empty,
+     * the time limit is reached or the token is cancelled.
+     *
+     * @param limit The time limit of this run.
+     * @return the number of nodes expanded in this run.
+     */
+    public int run(int limit) {
+        int expanded = getNumExpanded();
+        int interval = config.getInterval();
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; endState == null && !isExhausted(); i++) {
+            if (i == interval) {
+                if (config.getPrintProgress())
+                    printInfo(start);
+                if (System.currentTimeMillis() - start >= limit ||
+                        token.isCancelled() || queue.isOutOfBudget())
+                    break;
+                i = 0;
+            }
+
+            if (queue.size() <= reverseQueue.size())
+                expandForward();
+            else
+                expandReverse();
+            if (queue.size() + reverseQueue.size() > maxOpen)
+                maxOpen = queue.size() + reverseQueue.size();
+        }
+
+        if (config.getPrintProgress()) {
+            printInfo(start);
+            System.out.println();
+        }
+        if (endState != null || isExhausted())
+            queue.close();
+        return getNumExpanded() - expanded;
+    }
+
+    /**
+     * Release the files of the search. The search cannot be run again.
+     */
+    public void close() {
+        queue.close();
+    }
+
+    private void printInfo(long start) {
+        System.out.printf("forward: %6d, reverse: %6d, queues: %6d/%6d, " +
+                "time: %2.2f s\r", numExpanded, numReverseExpanded,
+                queue.size(), reverseQueue.size(),
+                (float)(System.currentTimeMillis()-start)/1000);
+    }
+
+    /**
+     * Expand the best node of the forward search.
+     */
+    private void expandForward() {
+        State curState = queue.poll();
+        int node = curState.getNode();
+        numExpanded++;
+
+        for (Entry<Direction, Point> move : curState.getAvailableMoves()) {
+            State nextState = State.getViewAfterMove(curState, move);
+            numInspected++;
+            int next = forward.add(nextState, node);
+            if (next < 0)
+                continue;
+
+            int other = reverse.find(nextState);
+            if (other >= 0) {
+                endState = stitch(next, other);
+                return;
+            }
+            nextState.setNode(next);
+            queue.add(nextState);
+        }
+    }
+
+    /**
+     * Expand the best node of the reverse search. A box is pulled by stepping
+     * away from it, which needs the player to stand next to the box and the
+     * cell behind the player to be free.
+     */
+    private void expandReverse() {
+        int node = (int)(long)reverseQueue.poll();
+        State curState = reverse.getView(node);
+        Point[] boxes = curState.getBoxes();
+        numReverseExpanded++;
+
+        for (int i = 0; i < boxes.length; i++)
+            for (Direction d : Direction.getArray()) {
+                Point box = boxes[i];
+                Point to = map.getPoint(box.x + d.dx, box.y + d.dy);
+                if (!curState.isReachable(to))
+                    continue;
+                Point player = map.getPoint(to.x + d.dx, to.y + d.dy);
+                if (map.isWall(player) || curState.hasBox(player))
+                    continue;
+
+                Point[] nextBoxes = boxes.clone();
+                nextBoxes[i] = to;
+                Arrays.sort(nextBoxes);
+                State nextState = new State(player, nextBoxes, map,
+                        curState.getNumMoves() + 1);
+                numInspected++;
+                int next = reverse.add(nextState, node);
+                if (next < 0)
+                    continue;
+
+                int other = forward.find(nextState);
+                if (other >= 0) {
+                    endState = stitch(other, next);
+                    return;
+                }
+                openReverse(nextState, next);
+            }
+    }
+
+    /**
+     * Join the paths of the two searches where they meet. The nodes of the
+     * reverse path are followed back to their goal state, each pull turned
+     * into a push.
+     *
+     * @param forwardNode The id of the meeting node in the forward store.
+     * @param reverseNode The id of the meeting node in the reverse store.
+     * @return the end state of the joined path, linked to the start state.
+     */
+    private State stitch(int forwardNode, int reverseNode) {
+        State state = forward.getState(forwardNode);
+        for (int id = reverse.getParent(reverseNode); id >= 0;
+                id = reverse.getParent(id)) {
+            Point[] boxes = reverse.getBoxes(id);
+            int[] push = PathBuilder.findPush(map, state.getBoxes(), boxes);
+            state = new State(map.getPoint(push[0]), boxes, map, state, true);
+        }
+        return state;
+    }
+}
@@ -0,0 +1,100 @@
+package Sokoban;
+
+/**
+ * A token used for cooperatively cancelling a running search. A search checks
+ * its token regularly and stops as soon as the token has been cancelled or its
+ * deadline has passed.
+ */
+public class CancellationToken {
+    /**
+     * Tells whether the token has been cancelled.
+     */
+    private volatile boolean cancelled;
+
+    /**
+     * The time in milliseconds after which the token is considered cancelled,
+     * or Long.MAX_VALUE if there is no deadline.
+     */
+    private final long deadline;
+
+    /**
+     * The token this token is cancelled along with, or null.
+     */
+    private final CancellationToken parent;
+
+    /**
+     * Create a new CancellationToken without a deadline.
+     */
+    public CancellationToken() {
+        this(Long.MAX_VALUE);
+    }
+
+    /**
+     * Create a new CancellationToken.
+     *
+     * @param deadline The time in milliseconds, as given by
+     * System.currentTimeMillis(), after which the token is cancelled.
+     */
+    public CancellationToken(long deadline) {
+        this(null, deadline);
+    }
+
+    /**
+     * Create a new CancellationToken.
+     *
+     * @param parent The token this token is cancelled along with, or null.
+     * @param deadline The time in milliseconds, as given by
+     * System.currentTimeMillis(), after which the token is cancelled.
+     */
+    private CancellationToken(CancellationToken parent, long deadline) {
+        this.parent = parent;
+        this.deadline = parent == null ? deadline :
+            Math.min(deadline, parent.deadline);
+        this.cancelled = false;
+    }
+
+    /**
+     * Create a new CancellationToken that is cancelled after the given time.
+     *
+     * @param timeout The time in milliseconds from now.
+     * @return the new token.
+     */
+    public static CancellationToken withTimeout(long timeout) {
+        return new CancellationToken(System.currentTimeMillis() + timeout);
+    }
+
+    /**
+     * Create a token that is cancelled when this token is, or when the given
+     * deadline has passed. Cancelling the new token does not cancel this one.
+     *
+     * @param deadline The time in milliseconds, as given by
+     * System.currentTimeMillis(), after which the new token is cancelled.
+     * @return the new token.
+     */
+    public CancellationToken withDeadline(long deadline) {
+        return new CancellationToken(this, deadline);
+    }
+
+    /**
+     * Cancel the token.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return the deadline of this token.
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @return true iff the token or the token it was created from has been
+     * cancelled, or its deadline has passed.
+     */
+    public boolean isCancelled() {
+        return cancelled || System.currentTimeMillis() >= deadline ||
+            (parent != null && parent.isCancelled());
+    }
+}
@@ -0,0 +1,237 @@
+package Sokoban;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The closed set of a search, i.e. the set of all nodes generated so far. The
+ * set is an open addressing hash table with linear probing, kept off the heap
+ * in a direct buffer. Each slot is a long holding the hash of a node in the
+ * upper half and the node id plus one in the lower half, so an empty slot is
+ * 0. The keys themselves, i.e. the boxes and the minimum reachable cell, are
+ * packed in the NodeStore and only compared when the hashes are equal.
+ *
+ * The set keeps statistics of its load factor and the lengths of the probe
+ * sequences. A ClosedSet is not thread safe.
+ */
+public class ClosedSet {
+    /**
+     * The largest number of slots. A direct buffer holds less than 2GB.
+     */
+    static final int maxSlots = 1 << 27;
+
+    /**
+     * The load factor at which the table is grown.
+     */
+    static final float maxLoad = 0.75f;
+
+    /**
+     * The store holding the keys of the nodes.
+     */
+    private NodeStore store;
+
+    /**
+     * The slots of the table.
+     */
+    private ByteBuffer table;
+
+    /**
+     * The number of slots in the table, a power of two.
+     */
+    private int slots;
+
+    /**
+     * The number of nodes in the set.
+     */
+    private int size;
+
+    /**
+     * The number of lookups.
+     */
+    private long lookups;
+
+    /**
+     * The total number of slots examined by all lookups.
+     */
+    private long probes;
+
+    /**
+     * The largest number of slots examined by a single lookup.
+     */
+    private int maxProbe;
+
+    /**
+     * Create a new ClosedSet.
+     *
+     * @param store The store holding the keys of the nodes.
+     * @param capacity The number of nodes the set should hold without being
+     * grown.
+     */
+    public ClosedSet(NodeStore store, int capacity) {
+        this.store = store;
+        long needed = (long)Math.ceil(Math.max(1, capacity) / maxLoad);
+        if (needed > maxSlots)
+            throw new IllegalArgumentException("capacity too large");
+        slots = Integer.highestOneBit((int)needed - 1) << 1;
+        slots = Math.max(slots, 16);
+        table = allocate(slots);
+    }
+
+    /**
+     * Allocate a table.
+     *
+     * @param slots The number of slots.
+     * @return a zeroed direct buffer with room for the given number of slots.
+     */
+    private static ByteBuffer allocate(int slots) {
+        return ByteBuffer.allocateDirect(slots * 8)
+            .order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Add a node to the set unless a node with an equal key already is in
+     * it.
+     *
+     * @param id The id of the node in the store.
+     * @param hash The hash of the node.
+     * @return id if the node was added, or the id of the equal node.
+     */
+    public int add(int id, int hash) {
+        int slot = probe(id, hash);
+        long entry = table.getLong(slot << 3);
+        if (entry != 0)
+            return (int)entry - 1;
+
+        table.putLong(slot << 3, ((long)hash << 32) | (id + 1L));
+        size++;
+        if (size > slots * maxLoad)
+            grow();
+        return id;
+    }
+
+    /**
+     * Find a node with the same key as the given node.
+     *
+     * @param id The id of the node in the store. The node itself need not be
+     * in the set.
+     * @param hash The hash of the node.
+     * @return the id of the equal node, or -1 if there is none.
+     */
+    public int find(int id, int hash) {
+        return (int)table.getLong(probe(id, hash) << 3) - 1;
+    }
+
+    /**
+     * Probe the table for a node.
+     *
+     * @param id The id of the node in the store.
+     * @param hash The hash of the node.
+     * @return the slot of the equal node, or the empty slot where the node
+     * belongs.
+     */
+    private int probe(int id, int hash) {
+        int mask = slots - 1;
+        int slot = hash & mask;
+        int length = 1;
+
+        for (long entry; (entry = table.getLong(slot << 3)) != 0;
+                slot = (slot + 1) & mask, length++)
+            if ((int)(entry >>> 32) == hash &&
+                    store.sameKey((int)entry - 1, id))
+                break;
+        count(length);
+        return slot;
+    }
+
+    /**
+     * Count a lookup.
+     *
+     * @param length The number of slots examined.
+     */
+    private void count(int length) {
+        lookups++;
+        probes += length;
+        if (length > maxProbe)
+            maxProbe = length;
+    }
+
+    /**
+     * Double the number of slots and reinsert all entries.
+     */
+    private void grow() {
+        if (slots == maxSlots)
+            throw new IllegalStateException("closed set is full");
+
+        ByteBuffer old = table;
+        int oldSlots = slots;
+        slots *= 2;
+        table = allocate(slots);
+        int mask = slots - 1;
+
+        for (int i = 0; i < oldSlots; i++) {
+            long entry = old.getLong(i << 3);
+            if (entry == 0)
+                continue;
+            int slot = (int)(entry >>> 32) & mask;
+            while (table.getLong(slot << 3) != 0)
+                slot = (slot + 1) & mask;
+            table.putLong(slot << 3, entry);
+        }
+    }
+
+    /**
+     * @return the number of nodes in the set.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of slots in the table.
+     */
+    public int getNumSlots() {
+        return slots;
+    }
+
+    /**
+     * @return the fraction of slots in use.
+     */
+    public float getLoadFactor() {
+        return (float)size / slots;
+    }
+
+    /**
+     * @return the number of lookups.
+     */
+    public long getLookups() {
+        return lookups;
+    }
+
+    /**
+     * @return the total number of slots examined by all lookups.
+     */
+    public long getProbes() {
+        return probes;
+    }
+
+    /**
+     * @return the average number of slots examined by a lookup.
+     */
+    public float getAverageProbe() {
+        return lookups == 0 ? 0 : (float)probes / lookups;
+    }
+
+    /**
+     * @return the largest number of slots examined by a single lookup.
+     */
+    public int getMaxProbe() {
+        return maxProbe;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("closed set: %d nodes, %d slots, load: %.2f, " +
+                "probes: %.2f avg, %d max", size, slots, getLoadFactor(),
+                getAverageProbe(), maxProbe);
+    }
+}
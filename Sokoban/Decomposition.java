@@ -0,0 +1,385 @@
+package Sokoban;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Callable;
+
+/**
+ * A split of a map into groups of boxes and goals that cannot influence each
+ * other. The footprint of a box is the set of cells it could ever be pushed
+ * to, ignoring all other boxes, together with the cells the player stands on
+ * for those pushes. Boxes whose footprints overlap are in the same group, and
+ * each goal belongs to the group whose boxes can reach it.
+ *
+ * Each group is solved on a map of its own, holding only its boxes and
+ * goals, and the groups are solved in parallel. All groups share the deadline
+ * of the token they are solved with, however late they start, and the memory
+ * budget is shared out between the groups running at once. Boxes that cannot
+ * be moved at all are walls on the maps of the other groups, and a group of
+ * such boxes on goals needs no solving. The solutions are then merged by
+ * doing the pushes of one group after the other on the whole map, and the
+ * player walks are found on the whole map as well. Since the boxes of the
+ * other groups may still be in the way of a walk, the merged solution is
+ * verified, and null is returned if it fails so the caller can fall back to a
+ * search of the whole map.
+ */
+public class Decomposition {
+    /**
+     * The map to split.
+     */
+    private Map map;
+
+    /**
+     * The boxes of each group.
+     */
+    private List<List<Point>> boxGroups;
+
+    /**
+     * The goals of each group.
+     */
+    private List<List<Point>> goalGroups;
+
+    /**
+     * The boxes that cannot be moved at all.
+     */
+    private List<Point> fixed;
+
+    /**
+     * The number of expanded nodes in all groups.
+     */
+    private int numExpanded;
+
+    /**
+     * The number of inspected nodes in all groups.
+     */
+    private int numInspected;
+
+    /**
+     * The largest open list of any group.
+     */
+    private int maxOpen;
+
+    /**
+     * The largest closed set of any group.
+     */
+    private int maxClosed;
+
+    /**
+     * Split a map into independent groups.
+     *
+     * @param map The map to split.
+     */
+    public Decomposition(Map map) {
+        this.map = map;
+        boxGroups = new ArrayList<List<Point>>();
+        goalGroups = new ArrayList<List<Point>>();
+        fixed = new ArrayList<Point>();
+
+        List<Point> boxes = map.getBoxes();
+        BitSet[] reachable = new BitSet[boxes.size()];
+        BitSet[] footprints = new BitSet[boxes.size()];
+        int[] groups = new int[boxes.size()];
+        for (int i = 0; i < boxes.size(); i++) {
+            reachable[i] = new BitSet(map.getNumCells());
+            footprints[i] = new BitSet(map.getNumCells());
+            findFootprint(boxes.get(i), reachable[i], footprints[i]);
+            groups[i] = i;
+            if (reachable[i].cardinality() == 1)
+                fixed.add(boxes.get(i));
+        }
+
+        /* Join the groups of overlapping footprints, keeping the lowest id. */
+        for (int i = 0; i < boxes.size(); i++)
+            for (int j = i + 1; j < boxes.size(); j++)
+                if (footprints[i].intersects(footprints[j]))
+                    join(groups, i, j);
+
+        int[] index = new int[boxes.size()];
+        Arrays.fill(index, -1);
+        List<BitSet> groupCells = new ArrayList<BitSet>();
+        for (int i = 0; i < boxes.size(); i++) {
+            int root = find(groups, i);
+            if (index[root] == -1) {
+                index[root] = boxGroups.size();
+                boxGroups.add(new ArrayList<Point>());
+                goalGroups.add(new ArrayList<Point>());
+                groupCells.add(new BitSet(map.getNumCells()));
+            }
+            boxGroups.get(index[root]).add(boxes.get(i));
+            groupCells.get(index[root]).or(reachable[i]);
+        }
+
+        for (Point goal : map.getGoals())
+            for (int g = 0; g < boxGroups.size(); g++)
+                if (groupCells.get(g).get(map.getIndex(goal))) {
+                    goalGroups.get(g).add(goal);
+                    break;
+                }
+
+        /* Without a goal for each box, the map is not split at all. */
+        int numGoals = 0;
+        boolean balanced = true;
+        for (int g = 0; g < boxGroups.size(); g++) {
+            numGoals += goalGroups.get(g).size();
+            balanced &= goalGroups.get(g).size() == boxGroups.get(g).size();
+        }
+        if (!balanced || numGoals != map.getGoals().size()) {
+            boxGroups.clear();
+            goalGroups.clear();
+            boxGroups.add(new ArrayList<Point>(boxes));
+            goalGroups.add(new ArrayList<Point>(map.getGoals()));
+        }
+    }
+
+    /**
+     * Find the cells a box can be pushed to when it is alone on the map,
+     * and the cells the player stands on for those pushes. Forbidden squares
+     * are left out.
+     *
+     * @param box The box.
+     * @param reachable The set to add the reachable cells to.
+     * @param footprint The set to add the reachable cells and the cells of
+     * the player to.
+     */
+    private void findFootprint(Point box, BitSet reachable,
+            BitSet footprint) {
+        int[] queue = new int[map.getNumCells()];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = map.getIndex(box);
+        reachable.set(map.getIndex(box));
+
+        while (head < tail) {
+            Point p = map.getPoint(queue[head++]);
+            footprint.set(map.getIndex(p));
+            for (Direction d : Direction.getArray()) {
+                Point to = map.getPoint(p.x + d.dx, p.y + d.dy);
+                Point player = map.getPoint(p.x - d.dx, p.y - d.dy);
+                if (map.isWall(to) || map.isWall(player) ||
+                        map.isForbidden(to))
+                    continue;
+                footprint.set(map.getIndex(player));
+                if (!reachable.get(map.getIndex(to))) {
+                    reachable.set(map.getIndex(to));
+                    queue[tail++] = map.getIndex(to);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param groups The parent of each group.
+     * @param i A group.
+     * @return the root of the group.
+     */
+    private static int find(int[] groups, int i) {
+        while (groups[i] != i)
+            i = groups[i] = groups[groups[i]];
+        return i;
+    }
+
+    /**
+     * Join two groups, keeping the lower root.
+     *
+     * @param groups The parent of each group.
+     * @param i A group.
+     * @param j Another group.
+     */
+    private static void join(int[] groups, int i, int j) {
+        int a = find(groups, i);
+        int b = find(groups, j);
+        groups[Math.max(a, b)] = Math.min(a, b);
+    }
+
+    /**
+     * @return the number of groups. A map that cannot be split has a single
+     * group.
+     */
+    public int getNumGroups() {
+        return boxGroups.size();
+    }
+
+    /**
+     * @param group The index of a group.
+     * @return the boxes of the group.
+     */
+    public List<Point> getBoxes(int group) {
+        return boxGroups.get(group);
+    }
+
+    /**
+     * @param group The index of a group.
+     * @return the goals of the group.
+     */
+    public List<Point> getGoals(int group) {
+        return goalGroups.get(group);
+    }
+
+    /**
+     * Create the map of a group, i.e. the map with only the boxes and goals
+     * of the group.
+     *
+     * @param group The index of a group.
+     * @return the map of the group.
+     */
+    public Map getSubMap(int group) {
+        List<Point> boxes = boxGroups.get(group);
+        List<Point> goals = goalGroups.get(group);
+        StringBuilder board = new StringBuilder();
+
+        for (int y = 0; y < map.getNumRows(); y++) {
+            for (int x = 0; x < map.getNumCols(); x++) {
+                Point p = map.getPoint(x, y);
+                boolean goal = goals.contains(p);
+                if (map.isWall(p) || (fixed.contains(p) && !boxes.contains(p)))
+                    board.append('#');
+                else if (p == map.getStart())
+                    board.append(goal ? '+' : '@');
+                else if (boxes.contains(p))
+                    board.append(goal ? '*' : '$');
+                else
+                    board.append(goal ? '.' : ' ');
+            }
+            board.append('\n');
+        }
+        return Map.parse(board.toString());
+    }
+
+    /**
+     * @return the number of expanded nodes in all groups.
+     */
+    public int getNumExpanded() {
+        return numExpanded;
+    }
+
+    /**
+     * @return the number of inspected nodes in all groups.
+     */
+    public int getNumInspected() {
+        return numInspected;
+    }
+
+    /**
+     * @return the largest open list of any group.
+     */
+    public int getMaxOpen() {
+        return maxOpen;
+    }
+
+    /**
+     * @return the largest closed set of any group.
+     */
+    public int getMaxClosed() {
+        return maxClosed;
+    }
+
+    /**
+     * Solve each group on its own map in parallel and merge the solutions.
+     *
+     * @param config The options used for solving each group. The groups are
+     * not split again, and each gets its share of the memory budget.
+     * @param token The token used for cancelling the searches. The searches
+     * stop at its deadline.
+     * @return the end state of the merged solution, linked to the start state
+     * of the map, or null if a group could not be solved or the merged
+     * solution is not valid.
+     */
+    public State solve(SolverConfig config, final CancellationToken token) {
+        int numThreads = Math.min(getNumGroups(),
+                Runtime.getRuntime().availableProcessors());
+        final SolverConfig groupConfig = config.toBuilder()
+            .decompose(false)
+            .optimizeTime(0)
+            .trace(null)
+            .checkpointFile(null)
+            .memoryBudget(config.getMemoryBudget() / numThreads)
+            .build();
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<SolveResult>> futures =
+            new ArrayList<Future<SolveResult>>();
+
+        try {
+            for (int g = 0; g < getNumGroups(); g++) {
+                if (fixed.containsAll(boxGroups.get(g)))
+                    continue;
+                final Map subMap = getSubMap(g);
+                futures.add(executor.submit(new Callable<SolveResult>() {
+                    public SolveResult call() {
+                        return Solver.solve(subMap, groupConfig, token);
+                    }
+                }));
+            }
+
+            List<State> ends = new ArrayList<State>();
+            for (Future<SolveResult> future : futures) {
+                SolveResult result = future.get();
+                numExpanded += result.getNumExpanded();
+                numInspected += result.getNumInspected();
+                maxOpen = Math.max(maxOpen, result.getMaxOpen());
+                maxClosed = Math.max(maxClosed, result.getMaxClosed());
+                ends.add(result.getEndState());
+            }
+            if (ends.contains(null))
+                return null;
+            return merge(ends);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Merge the solutions of the groups by doing their pushes on the whole
+     * map, one group after the other.
+     *
+     * @param ends The end states of the groups.
+     * @return the end state of the merged solution, or null if it is not
+     * valid on the whole map.
+     */
+    private State merge(List<State> ends) {
+        State state = new State(map.getStart(), map.getBoxes(), map);
+        for (State end : ends) {
+            State[] chain = end.getChain();
+            Map subMap = end.getMap();
+            for (int i = 1; i < chain.length; i++) {
+                int[] push = PathBuilder.findPush(subMap,
+                        chain[i-1].getBoxes(), chain[i].getBoxes());
+                Point from = translate(subMap.getPoint(push[0]));
+                Point to = translate(subMap.getPoint(push[1]));
+
+                Point[] boxes = state.getBoxes().clone();
+                for (int j = 0; j < boxes.length; j++)
+                    if (boxes[j] == from)
+                        boxes[j] = to;
+                Arrays.sort(boxes);
+                state = new State(from, boxes, map, state, true);
+            }
+        }
+
+        try {
+            if (new Verifier(map).verify(state.directionPath()).isSolution())
+                return state;
+        } catch (IllegalStateException e) {
+            /* A walk between pushes is blocked by another group. */
+        }
+        return null;
+    }
+
+    /**
+     * @param p A point of the map of a group.
+     * @return the point of the whole map with the same coordinates.
+     */
+    private Point translate(Point p) {
+        return map.getPoint(p.x, p.y);
+    }
+}
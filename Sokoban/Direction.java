@@ -30,7 +30,7 @@ public enum Direction {
     /**
      * Holds an array containing all directions. Saves memory.
      */
-    private static Direction[] dirs = null;
+    private static final Direction[] dirs = values();
 
     /**
      * Create a new Direction.
@@ -70,8 +70,6 @@ public enum Direction {
      * @return an array containing the available directions.
      */
     public static Direction[] getArray() {
-        if (dirs == null)
-            dirs = values();
         return dirs;
     }
 
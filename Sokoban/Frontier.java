@@ -0,0 +1,396 @@
+package Sokoban;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * The open list of a search. The states are kept in a priority queue ordered
+ * by the heuristic. With a memory budget, the frontier estimates the memory
+ * used by the search, i.e. the node store and the states in the queue, and
+ * when the budget is exceeded it spills the worse half of the queue to disk.
+ * Only the queue can be spilled, so once the node store alone leaves too
+ * little of the budget for the fewest states kept in memory, the frontier
+ * stops spilling and reports that it is out of budget, and the search is
+ * expected to stop rather than spill ever smaller runs.
+ *
+ * A spilled half is written as a run file holding the node ids in priority
+ * order, so both writing and reading are sequential. Only the head of each run
+ * is kept in memory, and the runs are merged with the queue as states are
+ * removed: a spilled state is read back once it is better than the best state
+ * in memory, so states are removed in the same order as without a budget.
+ * Spilled nodes stay in the node store and its closed set, so duplicates of
+ * spilled nodes are detected as usual and only the states are written out.
+ */
+public class Frontier implements Closeable {
+    /**
+     * An estimate of the heap used by a state in the queue, apart from its
+     * boxes and its cached bitsets: the object, the array header and the slot
+     * in the queue.
+     */
+    static final int stateBytes = 80;
+
+    /**
+     * The fewest states kept in memory, to avoid spilling tiny runs.
+     */
+    static final int minInMemory = 4096;
+
+    /**
+     * The most runs kept before they are merged into one.
+     */
+    static final int maxRuns = 32;
+
+    /**
+     * A sorted file of spilled node ids.
+     */
+    private class Run {
+        /**
+         * The file holding the run.
+         */
+        File file;
+
+        /**
+         * The stream the run is read from, or null if it is not opened yet.
+         */
+        DataInputStream in;
+
+        /**
+         * The number of nodes not yet read.
+         */
+        int remaining;
+
+        /**
+         * The next state of the run, or null.
+         */
+        State head;
+
+        /**
+         * Read the next state of the run into head.
+         */
+        void next() throws IOException {
+            if (in == null)
+                in = new DataInputStream(new BufferedInputStream(
+                            new FileInputStream(file), 1 << 16));
+            if (remaining == 0) {
+                head = null;
+                return;
+            }
+            head = store.getView(in.readInt());
+            remaining--;
+        }
+
+        /**
+         * Close and delete the run.
+         */
+        void delete() {
+            try {
+                if (in != null)
+                    in.close();
+            } catch (IOException e) { }
+            file.delete();
+        }
+    }
+
+    /**
+     * The heuristic the states are ordered by.
+     */
+    private Comparator<State> heuristic;
+
+    /**
+     * The store holding the nodes of the states.
+     */
+    private NodeStore store;
+
+    /**
+     * The states kept in memory.
+     */
+    private PriorityQueue<State> queue;
+
+    /**
+     * The runs spilled to disk, ordered by their heads.
+     */
+    private PriorityQueue<Run> runs;
+
+    /**
+     * The number of states in the runs, including their heads.
+     */
+    private int numSpilled;
+
+    /**
+     * The total number of nodes ever spilled.
+     */
+    private long totalSpilled;
+
+    /**
+     * The directory runs are written to.
+     */
+    private File directory;
+
+    /**
+     * The memory budget in bytes, or 0 if the frontier is never spilled.
+     */
+    private long budget;
+
+    /**
+     * Create a new Frontier without a memory budget.
+     *
+     * @param heuristic The heuristic the states are ordered by.
+     * @param store The store holding the nodes of the states.
+     */
+    public Frontier(Comparator<State> heuristic, NodeStore store) {
+        this.heuristic = heuristic;
+        this.store = store;
+        queue = new PriorityQueue<State>(1000, heuristic);
+        runs = new PriorityQueue<Run>(maxRuns + 1, new Comparator<Run>() {
+            public int compare(Run a, Run b) {
+                return Frontier.this.heuristic.compare(a.head, b.head);
+            }
+        });
+        numSpilled = 0;
+        totalSpilled = 0;
+        budget = 0;
+    }
+
+    /**
+     * Set the memory budget of the search.
+     *
+     * @param budget The memory budget in bytes, or 0 for no budget.
+     * @param directory The directory runs are written to.
+     */
+    public void setBudget(long budget, File directory) {
+        this.budget = budget;
+        this.directory = directory;
+    }
+
+    /**
+     * @return the estimated memory used by the search, in bytes.
+     */
+    public long getMemoryUsage() {
+        return store.getMemoryUsage() + (long)queue.size() * getStateBytes();
+    }
+
+    /**
+     * @return true iff the search exceeds the budget and the node store alone
+     * leaves too little of it for the fewest states kept in memory, so
+     * spilling cannot keep the search within the budget.
+     */
+    public boolean isOutOfBudget() {
+        return budget > 0 && getMemoryUsage() > budget &&
+            store.getMemoryUsage() + (long)minInMemory * getStateBytes() >
+            budget;
+    }
+
+    /**
+     * @return the estimated memory used by a state in the queue, in bytes,
+     * including the bitsets of occupied and reachable cells it caches.
+     */
+    private int getStateBytes() {
+        int words = (store.getMap().getNumCells() + 63) >>> 6;
+        return stateBytes + 4 * store.getNumBoxes() + 2 * (16 + 8 * words);
+    }
+
+    /**
+     * Add a state. The state must be stored in the node store.
+     *
+     * @param state The state to add.
+     */
+    public void add(State state) {
+        queue.add(state);
+        if (budget > 0 && queue.size() > minInMemory &&
+                !isOutOfBudget() && getMemoryUsage() > budget)
+            spill();
+    }
+
+    /**
+     * Remove the best state, reading it back from disk if it was spilled.
+     *
+     * @return the best state, or null if the frontier is empty.
+     */
+    public State poll() {
+        if (!runs.isEmpty() && (queue.isEmpty() ||
+                    heuristic.compare(runs.peek().head, queue.peek()) < 0))
+            return nextFromRuns();
+        return queue.poll();
+    }
+
+    /**
+     * @return the best state without removing it, or null if the frontier is
+     * empty.
+     */
+    public State peek() {
+        if (!runs.isEmpty() && (queue.isEmpty() ||
+                    heuristic.compare(runs.peek().head, queue.peek()) < 0))
+            return runs.peek().head;
+        return queue.peek();
+    }
+
+    /**
+     * @return the node ids of all states in the frontier, including spilled
+     * ones, in no particular order.
+     */
+    public int[] getNodes() {
+        int[] nodes = new int[size()];
+        int n = 0;
+        for (State state : queue)
+            nodes[n++] = state.getNode();
+
+        for (Run run : runs) {
+            nodes[n++] = run.head.getNode();
+            try (DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(
+                            new FileInputStream(run.file), 1 << 16))) {
+                /* The unread states are at the end of the run. */
+                in.skipNBytes(run.file.length() - 4L * run.remaining);
+                for (int i = 0; i < run.remaining; i++)
+                    nodes[n++] = in.readInt();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * @return the number of states in the frontier, including spilled ones.
+     */
+    public int size() {
+        return queue.size() + numSpilled;
+    }
+
+    /**
+     * @return true iff the frontier is empty.
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return the number of states currently spilled to disk.
+     */
+    public int getNumSpilled() {
+        return numSpilled;
+    }
+
+    /**
+     * @return the total number of states spilled to disk.
+     */
+    public long getTotalSpilled() {
+        return totalSpilled;
+    }
+
+    /**
+     * Write the worse half of the queue to a new run.
+     */
+    private void spill() {
+        int keep = queue.size() / 2;
+        PriorityQueue<State> kept = new PriorityQueue<State>(
+                Math.max(keep, 1000), heuristic);
+        for (int i = 0; i < keep; i++)
+            kept.add(queue.poll());
+
+        try {
+            Run run = newRun();
+            try (DataOutputStream out = newOutput(run)) {
+                while (!queue.isEmpty()) {
+                    out.writeInt(queue.poll().getNode());
+                    run.remaining++;
+                }
+            }
+            numSpilled += run.remaining;
+            totalSpilled += run.remaining;
+            run.next();
+            runs.add(run);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        queue = kept;
+
+        if (runs.size() > maxRuns)
+            compact();
+    }
+
+    /**
+     * @return a new, empty run.
+     */
+    private Run newRun() throws IOException {
+        Run run = new Run();
+        run.file = File.createTempFile("frontier", ".run", directory);
+        run.remaining = 0;
+        return run;
+    }
+
+    /**
+     * @param run The run to write.
+     * @return a buffered stream writing to the file of the run.
+     */
+    private static DataOutputStream newOutput(Run run) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(run.file), 1 << 16));
+    }
+
+    /**
+     * Merge all runs into a single run.
+     */
+    private void compact() {
+        try {
+            Run merged = newRun();
+            try (DataOutputStream out = newOutput(merged)) {
+                while (!runs.isEmpty()) {
+                    out.writeInt(nextFromRuns().getNode());
+                    merged.remaining++;
+                }
+            }
+            numSpilled += merged.remaining;
+            merged.next();
+            runs.add(merged);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Take the best head of the runs and read the next state of its run.
+     *
+     * @return the best spilled state.
+     */
+    private State nextFromRuns() {
+        Run run = runs.poll();
+        State state = run.head;
+        numSpilled--;
+        try {
+            run.next();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (run.head != null)
+            runs.add(run);
+        else
+            run.delete();
+        return state;
+    }
+
+    /**
+     * Delete all runs.
+     */
+    public void close() {
+        for (Run run : runs)
+            run.delete();
+        runs.clear();
+        numSpilled = 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("frontier: %d in memory, %d spilled in %d runs, " +
+                "%d spilled in total", queue.size(), numSpilled, runs.size(),
+                totalSpilled);
+    }
+}
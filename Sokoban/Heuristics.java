@@ -43,6 +43,16 @@ public class Heuristics {
         }
     }
 
+    /**
+     * A heuristic preferring the states whose boxes in goal rooms follow the
+     * packing order of the rooms.
+     */
+    public static class MinPackingPenalty implements Comparator<State> {
+        public int compare(State a, State b) {
+            return a.getPackingPenalty() - b.getPackingPenalty();
+        }
+    }
+
     /**
      * A heuristic comparing the number of steps from the goal the player is in
      * each state.
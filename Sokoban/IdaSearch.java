@@ -0,0 +1,621 @@
+package Sokoban;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A parallel iterative deepening A* search. Each iteration is a depth first
+ * search of the states with f = g + h at most the threshold, where g is the
+ * number of pushes and h the goal distance, and the next threshold is the
+ * smallest f that exceeded it. Only the states on the current path are kept,
+ * so the memory does not grow with the search.
+ *
+ * Each iteration first expands the top of the tree one level at a time, in
+ * move order, until there are enough subtrees to keep all threads busy. The
+ * subtrees are then searched as tasks on the common ForkJoinPool, whose idle
+ * threads steal the waiting tasks. If several subtrees hold a solution, the
+ * one of the first subtree in move order is kept and the later subtrees are
+ * abandoned. The solution is only taken once every subtree before it has been
+ * searched to the end, and otherwise the iteration counts as stopped.
+ *
+ * The shared transposition table is an array of longs, each holding the high
+ * bits of the key of a state and the fewest pushes it was reached with.
+ * During an iteration, the states are pruned using the table of the previous
+ * iteration, which is not changed, and recorded in a table of their own with
+ * a compare and set keeping the smaller entry. The tables thus only depend on
+ * which states are searched and not on the order in which the threads get to
+ * them. Each task also prunes the states it already reached itself with as
+ * few pushes, in a table of its thread that is cleared when the task starts.
+ * So every subtree is searched the same way and the solution found does not
+ * depend on the number of threads.
+ *
+ * Since the goal distance is greedy rather than a lower bound, the solutions
+ * are not guaranteed to be push optimal.
+ */
+public class IdaSearch {
+    /**
+     * The number of subtrees an iteration is split into, at least.
+     */
+    static final int minTasks = 64;
+
+    /**
+     * The deepest level at which the tree is split.
+     */
+    static final int maxSplitDepth = 4;
+
+    /**
+     * The default number of slots of each transposition table.
+     */
+    static final int tableSize = 1 << 20;
+
+    /**
+     * The number of low bits of a table entry holding the pushes.
+     */
+    static final int pushBits = 20;
+
+    /**
+     * The mask of the pushes of a table entry.
+     */
+    static final long pushMask = (1L << pushBits) - 1;
+
+    /**
+     * An empty slot of a table.
+     */
+    static final long empty = Long.MAX_VALUE;
+
+    /**
+     * The number of slots of the table of a task.
+     */
+    static final int localSize = 1 << 16;
+
+    /**
+     * The table of the tasks of each thread.
+     */
+    private static final ThreadLocal<LocalTable> locals =
+        new ThreadLocal<LocalTable>() {
+            @Override
+            protected LocalTable initialValue() {
+                return new LocalTable(localSize);
+            }
+        };
+
+    /**
+     * The map to solve.
+     */
+    private Map map;
+
+    /**
+     * The options used for searching.
+     */
+    private SolverConfig config;
+
+    /**
+     * The token used for cancelling the search.
+     */
+    private CancellationToken token;
+
+    /**
+     * The start state.
+     */
+    private State root;
+
+    /**
+     * The transposition table of the last finished iteration, only read.
+     */
+    private AtomicLongArray previous;
+
+    /**
+     * The transposition table of the current iteration.
+     */
+    private AtomicLongArray current;
+
+    /**
+     * The current threshold.
+     */
+    private int threshold;
+
+    /**
+     * The end state, or null if no solution has been found.
+     */
+    private State endState;
+
+    /**
+     * Tells whether an iteration found no state exceeding its threshold.
+     */
+    private boolean exhausted;
+
+    /**
+     * The number of expanded nodes in all runs.
+     */
+    private int numExpanded;
+
+    /**
+     * The number of inspected nodes in all runs.
+     */
+    private int numInspected;
+
+    /**
+     * The largest number of subtrees of an iteration.
+     */
+    private int maxTasks;
+
+    /**
+     * Create a new IdaSearch. With a memory budget, the transposition tables
+     * are sized to fit it.
+     *
+     * @param map The map to solve.
+     * @param config The options to use.
+     * @param token The token used for cancelling the search.
+     */
+    public IdaSearch(Map map, SolverConfig config, CancellationToken token) {
+        this.map = map;
+        this.config = config;
+        this.token = token;
+        root = new State(map.getStart(), map.getBoxes(), map);
+
+        int slots = tableSize;
+        if (config.getMemoryBudget() > 0)
+            slots = (int)Math.max(16, Long.highestOneBit(Math.min(
+                            config.getMemoryBudget() / 16, 1 << 30)));
+        previous = newTable(slots);
+        current = newTable(slots);
+
+        threshold = root.getGoalDistance();
+        endState = root.isGoalReached() ? root : null;
+        exhausted = false;
+        numExpanded = 0;
+        numInspected = 0;
+        maxTasks = 0;
+    }
+
+    /**
+     * @param slots The number of slots.
+     * @return a table with all slots empty.
+     */
+    private static AtomicLongArray newTable(int slots) {
+        AtomicLongArray table = new AtomicLongArray(slots);
+        clear(table);
+        return table;
+    }
+
+    /**
+     * Empty all slots of a table.
+     *
+     * @param table The table.
+     */
+    private static void clear(AtomicLongArray table) {
+        for (int i = 0; i < table.length(); i++)
+            table.set(i, empty);
+    }
+
+    /**
+     * @return the end state, or null if no solution has been found.
+     */
+    public State getEndState() {
+        return endState;
+    }
+
+    /**
+     * @return true iff the whole state space has been searched without
+     * finding a solution.
+     */
+    public boolean isExhausted() {
+        return exhausted;
+    }
+
+    /**
+     * @return the current threshold.
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @return the number of expanded nodes in all runs.
+     */
+    public int getNumExpanded() {
+        return numExpanded;
+    }
+
+    /**
+     * @return the number of inspected nodes in all runs.
+     */
+    public int getNumInspected() {
+        return numInspected;
+    }
+
+    /**
+     * @return the largest number of subtrees of an iteration.
+     */
+    public int getMaxOpen() {
+        return maxTasks;
+    }
+
+    /**
+     * @return the number of slots of both transposition tables.
+     */
+    public int getMaxClosed() {
+        return previous.length() + current.length();
+    }
+
+    /**
+     * Run iterations until a solution is found, the state space is
+     * exhausted, the time limit is reached or the token is cancelled. An
+     * iteration that is stopped is started over by the next run.
+     *
+     * @param limit The time limit of this run.
+     * @return the number of nodes expanded in this run.
+     */
+    public int run(int limit) {
+        int expanded = numExpanded;
+        long start = System.currentTimeMillis();
+        long deadline = start + limit;
+
+        while (endState == null && !exhausted && !token.isCancelled() &&
+                System.currentTimeMillis() < deadline) {
+            iterate(deadline);
+            if (config.getPrintProgress())
+                printInfo(start);
+        }
+
+        if (config.getPrintProgress())
+            System.out.println();
+        return numExpanded - expanded;
+    }
+
+    private void printInfo(long start) {
+        System.out.printf("threshold: %4d, expanded: %8d, tasks: %4d, " +
+                "time: %2.2f s\r", threshold, numExpanded, maxTasks,
+                (float)(System.currentTimeMillis()-start)/1000);
+    }
+
+    /**
+     * Search the states within the current threshold. If no solution is
+     * found, the threshold is raised and the table of this iteration is used
+     * for pruning the next.
+     *
+     * @param deadline The time at which to stop.
+     */
+    private void iterate(long deadline) {
+        clear(current);
+        Iteration iteration = new Iteration(deadline);
+        List<State> frontier = iteration.split();
+
+        List<SubtreeTask> tasks = new ArrayList<SubtreeTask>();
+        for (State state : frontier)
+            tasks.add(new SubtreeTask(iteration, state, tasks.size()));
+        maxTasks = Math.max(maxTasks, tasks.size());
+        final List<SubtreeTask> all = tasks;
+        ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(all);
+            }
+        });
+
+        int minExceeded = iteration.minExceeded;
+        numExpanded += iteration.expanded;
+        numInspected += iteration.inspected;
+        for (SubtreeTask task : tasks) {
+            numExpanded += task.expanded;
+            numInspected += task.inspected;
+            minExceeded = Math.min(minExceeded, task.minExceeded);
+        }
+        int solved = iteration.solved.get();
+        if (solved < tasks.size()) {
+            boolean complete = true;
+            for (int i = 0; i < solved; i++)
+                complete &= !tasks.get(i).interrupted;
+            if (complete) {
+                endState = tasks.get(solved).solution;
+                return;
+            }
+        }
+        if (iteration.stopped)
+            return;
+
+        if (minExceeded == Integer.MAX_VALUE)
+            exhausted = true;
+        else
+            threshold = minExceeded;
+        AtomicLongArray table = previous;
+        previous = current;
+        current = table;
+    }
+
+    /**
+     * The state of an iteration shared by its tasks.
+     */
+    private class Iteration {
+        /**
+         * The time at which to stop.
+         */
+        final long deadline;
+
+        /**
+         * The index of the first subtree known to hold a solution, or
+         * Integer.MAX_VALUE.
+         */
+        final AtomicInteger solved;
+
+        /**
+         * Tells whether the time limit was reached or the token cancelled.
+         */
+        volatile boolean stopped;
+
+        /**
+         * The number of nodes expanded while splitting.
+         */
+        int expanded;
+
+        /**
+         * The number of nodes inspected while splitting.
+         */
+        int inspected;
+
+        /**
+         * The smallest f exceeding the threshold while splitting.
+         */
+        int minExceeded;
+
+        Iteration(long deadline) {
+            this.deadline = deadline;
+            solved = new AtomicInteger(Integer.MAX_VALUE);
+            stopped = false;
+            minExceeded = Integer.MAX_VALUE;
+        }
+
+        /**
+         * Expand the top of the tree one level at a time until there are
+         * enough subtrees. Goal states are kept as subtrees of their own.
+         *
+         * @return the roots of the subtrees, in move order.
+         */
+        List<State> split() {
+            List<State> frontier = new ArrayList<State>();
+            frontier.add(root);
+            for (int depth = 0; depth < maxSplitDepth &&
+                    frontier.size() < minTasks && !frontier.isEmpty();
+                    depth++) {
+                List<State> next = new ArrayList<State>();
+                for (State state : frontier) {
+                    if (state.isGoalReached()) {
+                        next.add(state);
+                        continue;
+                    }
+                    expanded++;
+                    record(state);
+                    for (Entry<Direction, Point> move :
+                            state.getAvailableMoves()) {
+                        State child = State.getStateAfterMove(state, move);
+                        inspected++;
+                        int f = getF(child);
+                        if (f > threshold)
+                            minExceeded = Math.min(minExceeded, f);
+                        else if (!isPruned(child))
+                            next.add(child);
+                    }
+                }
+                frontier = next;
+            }
+            return frontier;
+        }
+    }
+
+    /**
+     * A task searching a subtree depth first.
+     */
+    private class SubtreeTask extends RecursiveAction {
+        /**
+         * The version of the serialized form of the task.
+         */
+        private static final long serialVersionUID = 1L;
+
+        final Iteration iteration;
+        final State top;
+        final int index;
+        State solution;
+        int expanded;
+        int inspected;
+        int minExceeded;
+
+        /**
+         * Tells whether the search of the subtree was cut short because the
+         * iteration was stopped.
+         */
+        boolean interrupted;
+
+        SubtreeTask(Iteration iteration, State top, int index) {
+            this.iteration = iteration;
+            this.top = top;
+            this.index = index;
+            minExceeded = Integer.MAX_VALUE;
+        }
+
+        /**
+         * The states reached by this task.
+         */
+        LocalTable local;
+
+        @Override
+        protected void compute() {
+            local = locals.get();
+            local.clear();
+            if (top.isGoalReached() || search(top)) {
+                if (top.isGoalReached())
+                    solution = top;
+                /* Keep the smallest index of a subtree with a solution. */
+                int solved;
+                while (index < (solved = iteration.solved.get()) &&
+                        !iteration.solved.compareAndSet(solved, index));
+            }
+        }
+
+        /**
+         * Search below a state.
+         *
+         * @param state The state.
+         * @return true iff a solution was found.
+         */
+        private boolean search(State state) {
+            if (iteration.stopped) {
+                interrupted = true;
+                return false;
+            }
+            if (index > iteration.solved.get())
+                return false;
+            if ((++expanded & 1023) == 0 &&
+                    (System.currentTimeMillis() >= iteration.deadline ||
+                     token.isCancelled())) {
+                iteration.stopped = true;
+                interrupted = true;
+                return false;
+            }
+            record(state);
+
+            for (Entry<Direction, Point> move : state.getAvailableMoves()) {
+                State child = State.getStateAfterMove(state, move);
+                inspected++;
+                int f = getF(child);
+                if (f > threshold) {
+                    minExceeded = Math.min(minExceeded, f);
+                    continue;
+                }
+                if (isPruned(child) || !local.add(getKey(child),
+                            child.getNumMoves()))
+                    continue;
+                if (child.isGoalReached()) {
+                    solution = child;
+                    return true;
+                }
+                if (search(child))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A lossy table of the states reached by a task, cleared in constant
+     * time by stamping each slot with a generation.
+     */
+    private static class LocalTable {
+        long[] entries;
+        int[] stamps;
+        int generation;
+
+        LocalTable(int slots) {
+            entries = new long[slots];
+            stamps = new int[slots];
+            generation = 0;
+        }
+
+        /**
+         * Forget all states.
+         */
+        void clear() {
+            if (++generation == 0) {
+                Arrays.fill(stamps, 0);
+                generation = 1;
+            }
+        }
+
+        /**
+         * Record a state unless it was reached with as few pushes before.
+         *
+         * @param key The key of the state.
+         * @param pushes The pushes it is reached with.
+         * @return false iff the state was reached with as few pushes before.
+         */
+        boolean add(long key, int pushes) {
+            int slot = (int)(key >>> pushBits) & (entries.length - 1);
+            long entry = (key & ~pushMask) | Math.min(pushes, pushMask);
+            if (stamps[slot] == generation &&
+                    (entries[slot] & ~pushMask) == (key & ~pushMask) &&
+                    (entries[slot] & pushMask) <= pushes)
+                return false;
+            stamps[slot] = generation;
+            entries[slot] = entry;
+            return true;
+        }
+    }
+
+    /**
+     * @param state A state.
+     * @return the f value of the state.
+     */
+    private static int getF(State state) {
+        return state.getNumMoves() + state.getGoalDistance();
+    }
+
+    /**
+     * Check if a state should not be searched: if it already is on the path
+     * leading to it, or if the last iteration reached it with fewer pushes.
+     *
+     * @param state The state.
+     * @return true iff the state is pruned.
+     */
+    private boolean isPruned(State state) {
+        for (State p = state.getPrevious(); p != null; p = p.getPrevious())
+            if (p.equals(state))
+                return true;
+
+        long key = getKey(state);
+        long entry = previous.get(getSlot(previous, key));
+        return (entry & ~pushMask) == (key & ~pushMask) &&
+            (entry & pushMask) < state.getNumMoves();
+    }
+
+    /**
+     * Record a state in the table of the current iteration. Of two entries
+     * for the same slot the smaller is kept, which for the same key is the
+     * one with fewer pushes.
+     *
+     * @param state The state.
+     */
+    private void record(State state) {
+        long key = getKey(state);
+        long entry = (key & ~pushMask) |
+            Math.min(state.getNumMoves(), pushMask);
+        int slot = getSlot(current, key);
+        long old;
+        while (entry < (old = current.get(slot)) &&
+                !current.compareAndSet(slot, old, entry));
+    }
+
+    /**
+     * @param table A table.
+     * @param key The key of a state.
+     * @return the slot of the state in the table.
+     */
+    private static int getSlot(AtomicLongArray table, long key) {
+        return (int)(key >>> pushBits) & (table.length() - 1);
+    }
+
+    /**
+     * @param state A state.
+     * @return a 64 bit key of the boxes and the minimum reachable cell of
+     * the state.
+     */
+    private long getKey(State state) {
+        long key = mix(map.getIndex(state.getMinPosition()));
+        for (Point box : state.getBoxes())
+            key = key * 31 + mix(map.getIndex(box));
+        return mix(key);
+    }
+
+    /**
+     * Scramble the bits of a value.
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+}
@@ -0,0 +1,677 @@
+package Sokoban;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A breadth first search over pushes that keeps its layers on disk, so it
+ * finds push optimal solutions of levels whose state space does not fit in
+ * memory.
+ *
+ * A node is identified by its key, i.e. the sorted box cells followed by the
+ * minimum cell reachable by the player, packed four cells to a long. Each
+ * layer is a file of sorted, unique keys. A layer is expanded by streaming
+ * it: the keys of the children are collected in a buffer, and each time the
+ * buffer is full it is sorted and written as a run file. The runs are then
+ * merged into the next layer, dropping the keys already seen. The keys of all
+ * layers so far are kept in one more sorted file, which the same merge
+ * rewrites with the keys of the new layer added. Since a box can be pushed
+ * back and forth, checking only the last few layers would let push cycles
+ * regenerate old nodes forever. With all of them checked, each node is
+ * expanded once, and a level without a solution ends with an empty layer.
+ *
+ * The path to the goal is found by going backwards through the layers: the
+ * predecessor of a node is found by streaming the layer before it and
+ * expanding each key until one of the children matches.
+ */
+public class LayeredSearch {
+    /**
+     * The map to solve.
+     */
+    private Map map;
+
+    /**
+     * The start state of the map.
+     */
+    private State startState;
+
+    /**
+     * The number of boxes.
+     */
+    private int numBoxes;
+
+    /**
+     * The number of longs in a key.
+     */
+    private int width;
+
+    /**
+     * The directory the layers of this search are written to.
+     */
+    private File directory;
+
+    /**
+     * The number of keys collected in memory before a run is written.
+     */
+    private int bufferSize;
+
+    /**
+     * Tells whether runs are sorted in parallel.
+     */
+    private boolean parallelSort;
+
+    /**
+     * The number of keys in each layer.
+     */
+    private List<Long> layerSizes;
+
+    /**
+     * The number of expanded nodes.
+     */
+    private long numExpanded;
+
+    /**
+     * Create a new LayeredSearch.
+     *
+     * @param map The map to solve.
+     * @param parent The directory to create the directory of the layers in,
+     * or null for the default temporary directory.
+     */
+    public LayeredSearch(Map map, File parent) throws IOException {
+        if (map.getNumCells() > NodeStore.maxCells)
+            throw new IllegalArgumentException("map has more than " +
+                    NodeStore.maxCells + " cells");
+
+        this.map = map;
+        startState = new State(map.getStart(), map.getBoxes(), map);
+        numBoxes = map.getBoxes().size();
+        width = (numBoxes + 4) / 4;
+        directory = parent == null ?
+            Files.createTempDirectory("layers").toFile() :
+            Files.createTempDirectory(parent.toPath(), "layers").toFile();
+        bufferSize = 1 << 20;
+        parallelSort = false;
+        layerSizes = new ArrayList<Long>();
+        numExpanded = 0;
+    }
+
+    /**
+     * @param bufferSize The number of keys collected in memory before a run
+     * is written.
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("bufferSize must be positive");
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @param parallelSort true iff runs should be sorted in parallel.
+     */
+    public void setParallelSort(boolean parallelSort) {
+        this.parallelSort = parallelSort;
+    }
+
+    /**
+     * @return the number of keys in each layer searched so far.
+     */
+    public List<Long> getLayerSizes() {
+        return layerSizes;
+    }
+
+    /**
+     * @return the number of expanded nodes.
+     */
+    public long getNumExpanded() {
+        return numExpanded;
+    }
+
+    /**
+     * Search for a push optimal solution.
+     *
+     * @param token The token used for cancelling the search.
+     * @return the end state of a push optimal solution, linked to the states
+     * before it, or null if there is no solution or the search was
+     * cancelled.
+     */
+    public State search(CancellationToken token) throws IOException {
+        try {
+            long[] key = new long[width];
+            pack(startState, key);
+            if (startState.isGoalReached())
+                return startState;
+
+            writeLayer(0, key);
+            for (int depth = 0; layerSizes.get(depth) > 0; depth++) {
+                long[] goal = expandLayer(depth, token);
+                if (token.isCancelled())
+                    return null;
+                if (goal != null)
+                    return backtrack(depth + 1, goal);
+            }
+            return null;
+        } finally {
+            for (File file : directory.listFiles())
+                file.delete();
+            directory.delete();
+        }
+    }
+
+    /**
+     * Write a layer holding a single key, and the keys seen up to it.
+     */
+    private void writeLayer(int depth, long[] key) throws IOException {
+        try (DataOutputStream out = output(layerFile(depth))) {
+            write(out, key);
+        }
+        try (DataOutputStream out = output(seenFile(depth))) {
+            write(out, key);
+        }
+        layerSizes.add(1L);
+    }
+
+    /**
+     * Expand all nodes of a layer and write the next layer.
+     *
+     * @param depth The depth of the layer to expand.
+     * @param token The token used for cancelling the search.
+     * @return the key of a goal node among the children, or null.
+     */
+    private long[] expandLayer(int depth, CancellationToken token)
+            throws IOException {
+        long[] buffer = new long[bufferSize * width];
+        int count = 0;
+        List<File> runs = new ArrayList<File>();
+        long[] key = new long[width];
+        long[] childKey = new long[width];
+
+        /* Unfinished runs are deleted with the directory. */
+        try (DataInputStream in = input(layerFile(depth))) {
+            for (long i = layerSizes.get(depth); i > 0; i--) {
+                if ((numExpanded & 1023) == 0 && token.isCancelled())
+                    return null;
+                read(in, key);
+                State state = unpack(key, depth);
+                numExpanded++;
+
+                for (Entry<Direction, Point> move : state.getAvailableMoves()) {
+                    State child = State.getViewAfterMove(state, move);
+                    if (count == bufferSize) {
+                        runs.add(writeRun(buffer, count, runs.size()));
+                        count = 0;
+                    }
+                    pack(child, childKey);
+                    System.arraycopy(childKey, 0, buffer, count * width,
+                            width);
+                    count++;
+                    if (child.isGoalReached())
+                        return childKey;
+                }
+            }
+        }
+
+        if (count > 0)
+            runs.add(writeRun(buffer, count, runs.size()));
+        buffer = null;
+        mergeRuns(runs, depth + 1);
+        return null;
+    }
+
+    /**
+     * Sort the keys of a buffer and write them to a run file, dropping
+     * duplicates.
+     *
+     * @return the run file.
+     */
+    private File writeRun(long[] buffer, int count, int number)
+            throws IOException {
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++)
+            order[i] = i;
+        SortTask task = new SortTask(buffer, width, order, new int[count], 0,
+                count, parallelSort);
+        if (parallelSort)
+            ForkJoinPool.commonPool().invoke(task);
+        else
+            task.compute();
+
+        File file = new File(directory, "run-" + number);
+        try (DataOutputStream out = output(file)) {
+            int last = -1;
+            for (int i : order) {
+                if (last < 0 || compare(buffer, i * width, buffer,
+                            last * width, width) != 0)
+                    for (int j = 0; j < width; j++)
+                        out.writeLong(buffer[i * width + j]);
+                last = i;
+            }
+        }
+        return file;
+    }
+
+    /**
+     * A sorted stream of keys.
+     */
+    private class KeyReader {
+        /**
+         * The stream keys are read from.
+         */
+        DataInputStream in;
+
+        /**
+         * The current key, or null if the stream is exhausted.
+         */
+        long[] key;
+
+        /**
+         * Create a new KeyReader and read its first key.
+         *
+         * @param file The file to read.
+         */
+        KeyReader(File file) throws IOException {
+            in = input(file);
+            key = new long[width];
+            next();
+        }
+
+        /**
+         * Read the next key.
+         */
+        void next() throws IOException {
+            try {
+                read(in, key);
+            } catch (EOFException e) {
+                key = null;
+                in.close();
+            }
+        }
+
+        /**
+         * Copy all keys less than the given key to a stream and skip them.
+         *
+         * @return true iff the given key was found.
+         */
+        boolean copy(long[] other, DataOutputStream out) throws IOException {
+            while (key != null && compare(key, 0, other, 0, width) < 0) {
+                write(out, key);
+                next();
+            }
+            return key != null && compare(key, 0, other, 0, width) == 0;
+        }
+
+        /**
+         * Copy all remaining keys to a stream.
+         */
+        void copyAll(DataOutputStream out) throws IOException {
+            while (key != null) {
+                write(out, key);
+                next();
+            }
+        }
+
+        /**
+         * Close the stream.
+         */
+        void close() throws IOException {
+            if (key != null)
+                in.close();
+        }
+    }
+
+    /**
+     * Merge the runs of a layer into the layer file, dropping duplicates and
+     * the keys of the previous layers. The keys of the new layer are merged
+     * into the keys seen so far as well.
+     *
+     * @param runs The run files.
+     * @param depth The depth of the new layer.
+     */
+    private void mergeRuns(List<File> runs, int depth) throws IOException {
+        PriorityQueue<KeyReader> heads = new PriorityQueue<KeyReader>(
+                Math.max(1, runs.size()), new Comparator<KeyReader>() {
+                    public int compare(KeyReader a, KeyReader b) {
+                        return LayeredSearch.compare(a.key, 0, b.key, 0,
+                                width);
+                    }
+                });
+        for (File run : runs) {
+            KeyReader reader = new KeyReader(run);
+            if (reader.key != null)
+                heads.add(reader);
+        }
+
+        KeyReader seen = new KeyReader(seenFile(depth - 1));
+        long size = 0;
+        long[] last = null;
+        try (DataOutputStream out = output(layerFile(depth));
+                DataOutputStream seenOut = output(seenFile(depth))) {
+            while (!heads.isEmpty()) {
+                KeyReader head = heads.poll();
+                long[] key = head.key.clone();
+                head.next();
+                if (head.key != null)
+                    heads.add(head);
+
+                if (last != null && compare(key, 0, last, 0, width) == 0)
+                    continue;
+                last = key;
+
+                if (!seen.copy(key, seenOut)) {
+                    write(out, key);
+                    write(seenOut, key);
+                    size++;
+                }
+            }
+            seen.copyAll(seenOut);
+        } finally {
+            seen.close();
+            for (File run : runs)
+                run.delete();
+            seenFile(depth - 1).delete();
+        }
+        layerSizes.add(size);
+    }
+
+    /**
+     * Find the path to a goal node by searching the layers backwards, and
+     * replay it forwards from the start state.
+     *
+     * @param depth The depth of the goal node.
+     * @param goal The key of the goal node.
+     * @return the goal state, linked to the states before it.
+     */
+    private State backtrack(int depth, long[] goal) throws IOException {
+        long[][] keys = new long[depth + 1][];
+        keys[depth] = goal;
+        long[] key = new long[width];
+        long[] childKey = new long[width];
+
+        for (int d = depth - 1; d >= 0; d--) {
+            try (DataInputStream in = input(layerFile(d))) {
+                search: for (long i = layerSizes.get(d); i > 0; i--) {
+                    read(in, key);
+                    State state = unpack(key, d);
+                    for (Entry<Direction, Point> move :
+                            state.getAvailableMoves()) {
+                        pack(State.getViewAfterMove(state, move), childKey);
+                        if (compare(childKey, 0, keys[d+1], 0, width) == 0) {
+                            keys[d] = key.clone();
+                            break search;
+                        }
+                    }
+                }
+            }
+            if (keys[d] == null)
+                throw new IllegalStateException("no predecessor in layer " + d);
+        }
+
+        State state = startState;
+        for (int d = 1; d <= depth; d++)
+            for (Entry<Direction, Point> move : state.getAvailableMoves()) {
+                State child = State.getStateAfterMove(state, move);
+                pack(child, childKey);
+                if (compare(childKey, 0, keys[d], 0, width) == 0) {
+                    state = child;
+                    break;
+                }
+            }
+        return state;
+    }
+
+    /**
+     * Pack the key of a state.
+     *
+     * @param state The state.
+     * @param key The array to pack the key into.
+     */
+    private void pack(State state, long[] key) {
+        Point[] boxes = state.getBoxes();
+        for (int i = 0; i < width; i++)
+            key[i] = 0;
+        for (int i = 0; i <= numBoxes; i++) {
+            long cell = map.getIndex(i < numBoxes ? boxes[i] :
+                    state.getMinPosition());
+            key[i / 4] |= cell << (48 - 16 * (i % 4));
+        }
+    }
+
+    /**
+     * Create a view of the node of a key. The player is put on the minimum
+     * reachable cell.
+     *
+     * @param key The key of the node.
+     * @param depth The depth of the node.
+     * @return a state with the boxes and player region of the key.
+     */
+    private State unpack(long[] key, int depth) {
+        Point[] boxes = new Point[numBoxes];
+        for (int i = 0; i < numBoxes; i++)
+            boxes[i] = map.getPoint(cell(key, i));
+        return new State(map.getPoint(cell(key, numBoxes)), boxes, map, depth);
+    }
+
+    /**
+     * @return the cell at the given position of a key.
+     */
+    private static int cell(long[] key, int i) {
+        return (int)(key[i / 4] >>> (48 - 16 * (i % 4))) & 0xffff;
+    }
+
+    /**
+     * Compare two keys.
+     *
+     * @return a negative number, zero or a positive number as the first key
+     * is less than, equal to or greater than the second.
+     */
+    static int compare(long[] a, int offsetA, long[] b, int offsetB,
+            int width) {
+        for (int i = 0; i < width; i++) {
+            int cmp = Long.compareUnsigned(a[offsetA + i], b[offsetB + i]);
+            if (cmp != 0)
+                return cmp;
+        }
+        return 0;
+    }
+
+    /**
+     * A merge sort of the keys of a buffer, given as a permutation. Large
+     * ranges are sorted in parallel when requested.
+     */
+    private static class SortTask extends RecursiveAction {
+        /**
+         * The version of the serialized form of the task.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The smallest range sorted in parallel.
+         */
+        static final int threshold = 1 << 14;
+
+        long[] keys;
+        int width;
+        int[] order;
+        int[] tmp;
+        int from;
+        int to;
+        boolean parallel;
+
+        SortTask(long[] keys, int width, int[] order, int[] tmp, int from,
+                int to, boolean parallel) {
+            this.keys = keys;
+            this.width = width;
+            this.order = order;
+            this.tmp = tmp;
+            this.from = from;
+            this.to = to;
+            this.parallel = parallel;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from < 2)
+                return;
+            int middle = (from + to) >>> 1;
+            SortTask left = new SortTask(keys, width, order, tmp, from, middle,
+                    parallel);
+            SortTask right = new SortTask(keys, width, order, tmp, middle, to,
+                    parallel);
+            if (parallel && to - from >= threshold)
+                invokeAll(left, right);
+            else {
+                left.compute();
+                right.compute();
+            }
+            merge(middle);
+        }
+
+        /**
+         * Merge the two sorted halves of the range.
+         */
+        private void merge(int middle) {
+            if (LayeredSearch.compare(keys, order[middle-1] * width, keys,
+                        order[middle] * width, width) <= 0)
+                return;
+            System.arraycopy(order, from, tmp, from, to - from);
+            int i = from;
+            int j = middle;
+            for (int k = from; k < to; k++)
+                if (j >= to || (i < middle && LayeredSearch.compare(keys,
+                                tmp[i] * width, keys, tmp[j] * width,
+                                width) <= 0))
+                    order[k] = tmp[i++];
+                else
+                    order[k] = tmp[j++];
+        }
+    }
+
+    /**
+     * @return the file of a layer.
+     */
+    private File layerFile(int depth) {
+        return new File(directory, "layer-" + depth);
+    }
+
+    /**
+     * @return the file of the keys of all layers up to the given depth.
+     */
+    private File seenFile(int depth) {
+        return new File(directory, "seen-" + depth);
+    }
+
+    /**
+     * @return a buffered stream reading from a file.
+     */
+    private static DataInputStream input(File file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file), 1 << 16));
+    }
+
+    /**
+     * @return a buffered stream writing to a file.
+     */
+    private static DataOutputStream output(File file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), 1 << 16));
+    }
+
+    /**
+     * Read a key from a stream.
+     */
+    private void read(DataInputStream in, long[] key) throws IOException {
+        for (int i = 0; i < width; i++)
+            key[i] = in.readLong();
+    }
+
+    /**
+     * Write a key to a stream.
+     */
+    private void write(DataOutputStream out, long[] key) throws IOException {
+        for (int i = 0; i < width; i++)
+            out.writeLong(key[i]);
+    }
+
+    /**
+     * Find a push optimal solution of a level. Usage:
+     *
+     * LayeredSearch <file> <level> [-l limit] [-d directory] [-b buffer] [-p]
+     *
+     * The buffer is given in keys. With -p, runs are sorted in parallel.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: LayeredSearch <file> <level> " +
+                    "[-l limit] [-d directory] [-b buffer] [-p]");
+            System.exit(1);
+        }
+
+        String mapString = Puzzle.getPuzzleFromFile(args[0],
+                Integer.parseInt(args[1]));
+        if (mapString == null) {
+            System.err.println("No puzzle with the supplied number found.");
+            System.exit(1);
+        }
+
+        int limit = Solver.searchLimit;
+        File parent = null;
+        int bufferSize = 1 << 20;
+        boolean parallel = false;
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("-p"))
+                parallel = true;
+            else if (i + 1 >= args.length) {
+                System.err.println("Missing value for " + args[i] + ".");
+                System.exit(1);
+            } else if (args[i].equals("-l"))
+                limit = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-d"))
+                parent = new File(args[++i]);
+            else if (args[i].equals("-b"))
+                bufferSize = Integer.parseInt(args[++i]);
+            else {
+                System.err.println("Invalid option specified.");
+                System.exit(1);
+            }
+        }
+
+        Map map = Map.parse(mapString);
+        LayeredSearch search = new LayeredSearch(map, parent);
+        search.setBufferSize(bufferSize);
+        search.setParallelSort(parallel);
+
+        long time = System.currentTimeMillis();
+        State end = search.search(CancellationToken.withTimeout(limit));
+        time = System.currentTimeMillis() - time;
+
+        System.out.println("layers: " + search.getLayerSizes());
+        System.out.printf("expanded: %d, time: %2.2f s\n",
+                search.getNumExpanded(), (float)time/1000);
+        if (end == null) {
+            System.out.println("No solution found.");
+            System.exit(1);
+        }
+
+        List<Direction> path = end.directionPath();
+        Verifier.Result verified = new Verifier(map).verify(path);
+        System.out.printf("pushes: %d, moves: %d, verified: %b\n",
+                end.getNumMoves(), path.size(), verified.isSolution());
+        for (Direction d : path)
+            System.out.print(d);
+        System.out.println();
+    }
+}
@@ -4,6 +4,9 @@ import java.util.Set;
 import java.util.HashSet;
 import java.util.List;
 import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Queue;
 
 /**
@@ -20,6 +23,79 @@ public class Map {
         NONE, GOAL, WALL;
     };
 
+    /**
+     * A goal room, i.e. an area holding goals that can only be entered through
+     * a single cell, the entrance. The entrance is a tunnel cell, so a box is
+     * always pushed through it onto the same cell of the room, the entry.
+     */
+    public static class GoalRoom {
+        /**
+         * The cell outside the room a box is pushed from into the room.
+         */
+        private final Point entrance;
+
+        /**
+         * The cell of the room a box pushed through the entrance ends up on.
+         */
+        private final Point entry;
+
+        /**
+         * The cells of the room.
+         */
+        private final Set<Point> cells;
+
+        /**
+         * The goals of the room, in the order they should be filled.
+         */
+        private final List<Point> slots;
+
+        /**
+         * Create a new GoalRoom.
+         *
+         * @param entrance The cell a box is pushed from into the room.
+         * @param entry The cell a box pushed into the room ends up on.
+         * @param cells The cells of the room.
+         * @param slots The goals of the room, in the order they should be
+         * filled.
+         */
+        GoalRoom(Point entrance, Point entry, Set<Point> cells,
+                List<Point> slots) {
+            this.entrance = entrance;
+            this.entry = entry;
+            this.cells = cells;
+            this.slots = slots;
+        }
+
+        /**
+         * @return the cell outside the room a box is pushed from into the
+         * room.
+         */
+        public Point getEntrance() {
+            return entrance;
+        }
+
+        /**
+         * @return the cell of the room a box pushed into it ends up on.
+         */
+        public Point getEntry() {
+            return entry;
+        }
+
+        /**
+         * @return the cells of the room.
+         */
+        public Set<Point> getCells() {
+            return cells;
+        }
+
+        /**
+         * @return the goals of the room, in the order they should be filled.
+         */
+        public List<Point> getSlots() {
+            return slots;
+        }
+    }
+
     /**
      * The start position. The position where the player should start.
      */
@@ -50,11 +126,36 @@ public class Map {
      */
     private Set<Point>[][] goalsReachable;
 
+    /**
+     * The fewest pushes moving a box alone from each cell to a goal.
+     */
+    private int[] pushDistances;
+
     /**
      * A calculated score for each point in the map.
      */
     private float[][] scores;
 
+    /**
+     * The goal rooms of the map.
+     */
+    private List<GoalRoom> goalRooms;
+
+    /**
+     * The goal room entered from each cell, or null.
+     */
+    private GoalRoom[] roomsByEntrance;
+
+    /**
+     * The room of each cell, or null.
+     */
+    private GoalRoom[] roomsByCell;
+
+    /**
+     * The position of each goal in the packing order of its room, or -1.
+     */
+    private int[] packingRanks;
+
     /**
      * Create a new Map.
      *
@@ -77,7 +178,20 @@ public class Map {
                     this.goals.add(points[y][x]);
 
         goalsReachable = findReachableGoals();
+        pushDistances = findPushDistances();
         scores = findScores();
+        goalRooms = findGoalRooms();
+        roomsByEntrance = new GoalRoom[getNumCells()];
+        roomsByCell = new GoalRoom[getNumCells()];
+        packingRanks = new int[getNumCells()];
+        Arrays.fill(packingRanks, -1);
+        for (GoalRoom room : goalRooms) {
+            roomsByEntrance[getIndex(room.getEntrance())] = room;
+            for (Point p : room.getCells())
+                roomsByCell[getIndex(p)] = room;
+            for (int i = 0; i < room.getSlots().size(); i++)
+                packingRanks[getIndex(room.getSlots().get(i))] = i;
+        }
     }
 
     /**
@@ -91,6 +205,57 @@ public class Map {
         return points[y][x];
     }
 
+    /**
+     * Getter for map points by cell index.
+     *
+     * @param index The cell index of the point to return.
+     * @return the point with the given cell index.
+     * @see getIndex(int, int)
+     */
+    public Point getPoint(int index) {
+        return points[index % getNumRows()][index / getNumRows()];
+    }
+
+    /**
+     * Getter for the cell index of a position. The cells of the map are
+     * numbered column by column, so that the order of the indexes is the same
+     * as the order of the points given by Point.compareTo().
+     *
+     * @param x The x-coordinate of the position.
+     * @param y The y-coordinate of the position.
+     * @return the cell index of the given position.
+     */
+    public int getIndex(int x, int y) {
+        return x*getNumRows() + y;
+    }
+
+    /**
+     * Getter for the cell index of a point.
+     *
+     * @param p The point in question.
+     * @return the cell index of the given point.
+     */
+    public int getIndex(Point p) {
+        return getIndex(p.x, p.y);
+    }
+
+    /**
+     * Getter for the difference in cell index when moving in a direction.
+     *
+     * @param d The direction of movement.
+     * @return the value to add to a cell index to move in the given direction.
+     */
+    public int getOffset(Direction d) {
+        return d.dx*getNumRows() + d.dy;
+    }
+
+    /**
+     * @return the number of cells in the map.
+     */
+    public int getNumCells() {
+        return getNumRows()*getNumCols();
+    }
+
     /**
      * Getter for scores.
      *
@@ -231,6 +396,19 @@ public class Map {
         return goalsReachable[y][x];
     }
 
+    /**
+     * Getter for the push distance of a position, i.e. the fewest pushes
+     * moving a box from it to any goal when there are no other boxes. It is
+     * never more than the pushes needed when there are.
+     *
+     * @param p The point in question.
+     * @return the push distance of the given position, or the number of
+     * cells of the map if no goal can be reached from it.
+     */
+    public int getPushDistance(Point p) {
+        return pushDistances[getIndex(p)];
+    }
+
     /**
      * Check if a given point in the map is free.
      *
@@ -252,6 +430,263 @@ public class Map {
         return matrix[y][x] == Square.NONE;
     }
 
+    /**
+     * Check if a point is a tunnel cell in a given direction, i.e. a cell with
+     * walls on both sides that can be passed in the direction.
+     *
+     * @param p The point to check.
+     * @param d The direction of passing.
+     * @return true iff the point is a tunnel cell in the given direction.
+     */
+    public boolean isTunnel(Point p, Direction d) {
+        Direction left = d.getRelative(-1);
+        Direction right = d.getRelative(1);
+        return !isWall(p) && isWall(p.x + left.dx, p.y + left.dy) &&
+            isWall(p.x + right.dx, p.y + right.dy);
+    }
+
+    /**
+     * @return the goal rooms of the map.
+     */
+    public List<GoalRoom> getGoalRooms() {
+        return goalRooms;
+    }
+
+    /**
+     * Getter for the goal room entered from a cell.
+     *
+     * @param p The cell a box is pushed from.
+     * @return the goal room with the given entrance, or null if there is none.
+     */
+    public GoalRoom getGoalRoom(Point p) {
+        return roomsByEntrance[getIndex(p)];
+    }
+
+    /**
+     * Getter for the goal room holding a cell.
+     *
+     * @param p The cell.
+     * @return the goal room the cell belongs to, or null.
+     */
+    public GoalRoom getRoom(Point p) {
+        return roomsByCell[getIndex(p)];
+    }
+
+    /**
+     * Getter for the packing rank of a goal, i.e. its position in the order
+     * in which the goals of its room should be filled.
+     *
+     * @param p The goal.
+     * @return the packing rank of the goal, or -1 if it is not in a room.
+     */
+    public int getPackingRank(Point p) {
+        return packingRanks[getIndex(p)];
+    }
+
+    /**
+     * Finds the goal rooms of the map. The entrance of a room is a tunnel cell
+     * that separates the room from the rest of the map, and the room must
+     * hold goals but neither the player nor any box at the start. The
+     * entrance closest to the room is used, so the entry is not a tunnel
+     * cell itself, and a room whose entrance lies within another room is
+     * dropped, so boxes are moved as far as possible by a macro move. The
+     * goals of a room are ordered by findPackingOrder().
+     *
+     * @return the list of goal rooms.
+     */
+    List<GoalRoom> findGoalRooms() {
+        List<GoalRoom> rooms = new LinkedList<GoalRoom>();
+
+        for (int y = 1; y < getNumRows()-1; y++)
+            for (int x = 1; x < getNumCols()-1; x++) {
+                Point entrance = getPoint(x, y);
+                if (isGoal(entrance))
+                    continue;
+
+                for (Direction d : Direction.getArray()) {
+                    if (!isTunnel(entrance, d))
+                        continue;
+                    Point entry = getPoint(x + d.dx, y + d.dy);
+                    Point behind = getPoint(x - d.dx, y - d.dy);
+                    if (isWall(entry) || isWall(behind) || isTunnel(entry, d))
+                        continue;
+
+                    List<Point> area = findArea(entry, entrance);
+                    if (area == null || area.contains(behind) ||
+                            area.contains(start))
+                        continue;
+
+                    List<Point> slots = new ArrayList<Point>();
+                    boolean hasBox = false;
+                    for (Point p : area) {
+                        if (isGoal(p))
+                            slots.add(p);
+                        hasBox |= boxes.contains(p);
+                    }
+                    if (slots.isEmpty() || hasBox)
+                        continue;
+
+                    rooms.add(new GoalRoom(entrance, entry,
+                                new HashSet<Point>(area),
+                                findPackingOrder(entrance, entry, slots)));
+                }
+            }
+
+        List<GoalRoom> outer = new LinkedList<GoalRoom>();
+        for (GoalRoom room : rooms) {
+            boolean inner = false;
+            for (GoalRoom other : rooms)
+                inner |= other.getCells().contains(room.getEntrance());
+            if (!inner)
+                outer.add(room);
+        }
+        return outer;
+    }
+
+    /**
+     * Finds the order in which the goals of a room can be filled, by a search
+     * backwards from the filled room. A box is removed from the room if a box
+     * pushed through the entrance could have reached its goal with the other
+     * remaining boxes in place, preferring the goals closest to the entry.
+     * The reverse of the removal order is a feasible packing order, ignoring
+     * the boxes outside the room. If the boxes cannot all be removed, or the
+     * room has more than 63 goals, the goals farthest from the entry are
+     * filled first.
+     *
+     * @param entrance The entrance of the room.
+     * @param entry The entry of the room.
+     * @param goals The goals of the room, nearest to the entry first.
+     * @return the goals in packing order.
+     */
+    private List<Point> findPackingOrder(Point entrance, Point entry,
+            List<Point> goals) {
+        List<Point> removed = new ArrayList<Point>();
+        if (goals.size() < 64 && removeBoxes((1L << goals.size()) - 1, goals,
+                    entrance, entry, new PathBuilder(this), removed,
+                    new HashSet<Long>())) {
+            Collections.reverse(removed);
+            return removed;
+        }
+
+        List<Point> order = new ArrayList<Point>(goals);
+        Collections.reverse(order);
+        return order;
+    }
+
+    /**
+     * Remove the boxes from a partly filled goal room, depth first.
+     *
+     * @param filled The goals holding boxes, as a bit set over goals.
+     * @param goals The goals of the room.
+     * @param entrance The entrance of the room.
+     * @param entry The entry of the room.
+     * @param builder The path builder used for moving the boxes.
+     * @param removed The goals removed so far, in order.
+     * @param failed The sets of filled goals that cannot be emptied.
+     * @return true iff all boxes could be removed.
+     */
+    private boolean removeBoxes(long filled, List<Point> goals,
+            Point entrance, Point entry, PathBuilder builder,
+            List<Point> removed, Set<Long> failed) {
+        if (filled == 0)
+            return true;
+        if (failed.contains(filled))
+            return false;
+
+        for (int i = 0; i < goals.size(); i++) {
+            if ((filled & (1L << i)) == 0)
+                continue;
+
+            long rest = filled & ~(1L << i);
+            Point goal = goals.get(i);
+            List<Point> boxes = new ArrayList<Point>();
+            for (int j = 0; j < goals.size(); j++)
+                if ((rest & (1L << j)) != 0)
+                    boxes.add(goals.get(j));
+            if (boxes.contains(entry))
+                continue;
+
+            builder.setBoard(boxes.toArray(new Point[0]));
+            if (goal != entry && builder.findBoxPath(getIndex(entry),
+                        getIndex(goal), getIndex(entrance)) == null)
+                continue;
+
+            removed.add(goal);
+            if (removeBoxes(rest, goals, entrance, entry, builder, removed,
+                        failed))
+                return true;
+            removed.remove(removed.size() - 1);
+        }
+        failed.add(filled);
+        return false;
+    }
+
+    /**
+     * Finds the cells connected to a cell without passing a given cell.
+     *
+     * @param from The cell to start in.
+     * @param excluded The cell that may not be passed.
+     * @return the connected cells in breadth first order, or null if the
+     * area reaches the border of the map.
+     */
+    private List<Point> findArea(Point from, Point excluded) {
+        List<Point> area = new ArrayList<Point>();
+        Set<Point> visited = new HashSet<Point>();
+        area.add(from);
+        visited.add(from);
+        visited.add(excluded);
+
+        for (int i = 0; i < area.size(); i++) {
+            Point p = area.get(i);
+            if (p.x == 0 || p.y == 0 || p.x == getNumCols()-1 ||
+                    p.y == getNumRows()-1)
+                return null;
+            for (Direction d : Direction.getArray()) {
+                Point next = getPoint(p.x + d.dx, p.y + d.dy);
+                if (!isWall(next) && visited.add(next))
+                    area.add(next);
+            }
+        }
+        return area;
+    }
+
+    /**
+     * Finds the push distance of each cell by pulling a box backwards from
+     * all goals at once. A box can be pushed from b to b + d if the player
+     * can stand on b - d, so it can be pulled from b + d to b then.
+     *
+     * @return the push distance of each cell index.
+     */
+    private int[] findPushDistances() {
+        int[] distances = new int[getNumCells()];
+        int[] queue = new int[getNumCells()];
+        int head = 0;
+        int tail = 0;
+        Arrays.fill(distances, getNumCells());
+        for (Point goal : goals) {
+            distances[getIndex(goal)] = 0;
+            queue[tail++] = getIndex(goal);
+        }
+
+        while (head < tail) {
+            Point p = getPoint(queue[head++]);
+            for (Direction d : Direction.getArray()) {
+                int x = p.x - d.dx;
+                int y = p.y - d.dy;
+                if (x - d.dx < 0 || x - d.dx >= getNumCols() ||
+                        y - d.dy < 0 || y - d.dy >= getNumRows() ||
+                        isWall(x, y) || isWall(x - d.dx, y - d.dy))
+                    continue;
+                int from = getIndex(x, y);
+                if (distances[from] == getNumCells()) {
+                    distances[from] = distances[getIndex(p)] + 1;
+                    queue[tail++] = from;
+                }
+            }
+        }
+        return distances;
+    }
+
     /**
      * Finds the goals that are reachable in each point in the map. Forbidden
      * states are those where the number of reachable goals is zero.
@@ -259,7 +694,7 @@ public class Map {
      * @return an array of sets where each set contains the goals that are
      * reachable in the given position.
      */
-    private Set<Point>[][] findReachableGoals() {
+    Set<Point>[][] findReachableGoals() {
         @SuppressWarnings("unchecked")
         Set<Point>[][] goalSets = new Set[getNumRows()][getNumCols()];
         Queue<Point> queue = new LinkedList<Point>();
@@ -307,7 +742,7 @@ public class Map {
      * @return a two-dimensional array where the indexes are the x and y
      * coordinate of the points and its value is the calculated score.
      */
-    private float[][] findScores() {
+    float[][] findScores() {
         float[][] scores = new float[getNumRows()][getNumCols()];
 
         for (int y = 1; y < getNumRows()-1; y++)
@@ -326,6 +761,23 @@ public class Map {
         return scores;
     }
 
+    /**
+     * @return a hash of the whole level, i.e. its size, walls, goals, boxes
+     * and start. Unlike toString(), it tells apart levels that only differ in
+     * their boxes or start.
+     */
+    public long getFingerprint() {
+        long hash = getNumRows() * 31L + getNumCols();
+        for (int i = 0; i < getNumCells(); i++) {
+            Point p = getPoint(i);
+            hash = hash * 31 + (isWall(p) ? 1 : isGoal(p) ? 2 : 3);
+        }
+        hash = hash * 31 + getIndex(start);
+        for (Point box : boxes)
+            hash = hash * 31 + getIndex(box);
+        return hash;
+    }
+
     @Override
     public String toString() {
         StringBuffer buffer = new StringBuffer(getNumRows()*getNumCols());
@@ -0,0 +1,425 @@
+package Sokoban;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A store of the nodes of a search. Each node is addressed by an int id and
+ * its fields are kept in parallel primitive arrays, so the store holds no
+ * objects apart from the arrays themselves:
+ *
+ * parents  the id of the node the node was generated from, or -1.
+ * depths   the number of pushes from the start node.
+ * hashes   the hash of the node.
+ * players  the cell of the player after the push leading to the node.
+ * mins     the minimum cell reachable by the player, which together with the
+ *          boxes identifies the node.
+ * boxes    the sorted cells of the boxes, numBoxes per node.
+ *
+ * Cells are indexes as given by Map.getIndex(), so they fit in a char. A node
+ * costs 16 + 2 * numBoxes bytes plus its slot in the ClosedSet, which indexes
+ * the nodes by their boxes and minimum cell off the heap.
+ *
+ * States are only views of nodes, created when a node is expanded or when the
+ * path to a node is needed.
+ */
+public class NodeStore {
+    /**
+     * The nodes of a store at some point in time. Nodes are never changed once
+     * added, so a snapshot only keeps the arrays of the store and its size,
+     * and stays valid while more nodes are added. Nodes moved by reparent()
+     * are the exception, so searches doing so should not take snapshots.
+     */
+    public static class Snapshot {
+        private final int size;
+        private final int numBoxes;
+        private final int[] parents;
+        private final int[] depths;
+        private final char[] players;
+        private final char[] mins;
+        private final char[] boxes;
+
+        /**
+         * Create a new Snapshot of a store.
+         *
+         * @param store The store.
+         */
+        Snapshot(NodeStore store) {
+            size = store.size;
+            numBoxes = store.numBoxes;
+            parents = store.parents;
+            depths = store.depths;
+            players = store.players;
+            mins = store.mins;
+            boxes = store.boxes;
+        }
+
+        /**
+         * Write the nodes of the snapshot to a stream.
+         *
+         * @param out The stream to write to.
+         */
+        public void write(DataOutputStream out) throws IOException {
+            out.writeInt(numBoxes);
+            out.writeInt(size);
+            for (int id = 0; id < size; id++) {
+                out.writeInt(parents[id]);
+                out.writeInt(depths[id]);
+                out.writeChar(players[id]);
+                out.writeChar(mins[id]);
+                for (int i = id * numBoxes; i < (id + 1) * numBoxes; i++)
+                    out.writeChar(boxes[i]);
+            }
+        }
+    }
+
+    /**
+     * The largest number of cells a map may have.
+     */
+    static final int maxCells = Character.MAX_VALUE + 1;
+
+    /**
+     * The map the nodes belong to.
+     */
+    private Map map;
+
+    /**
+     * The number of boxes in each node.
+     */
+    private int numBoxes;
+
+    /**
+     * The number of nodes in the store.
+     */
+    private int size;
+
+    /**
+     * The parent of each node, or -1.
+     */
+    private int[] parents;
+
+    /**
+     * The depth of each node.
+     */
+    private int[] depths;
+
+    /**
+     * The hash of each node.
+     */
+    private int[] hashes;
+
+    /**
+     * The player cell of each node.
+     */
+    private char[] players;
+
+    /**
+     * The minimum reachable cell of each node.
+     */
+    private char[] mins;
+
+    /**
+     * The sorted box cells of each node.
+     */
+    private char[] boxes;
+
+    /**
+     * The index of the nodes by key.
+     */
+    private ClosedSet closed;
+
+    /**
+     * Create a new NodeStore.
+     *
+     * @param map The map the nodes belong to.
+     * @param numBoxes The number of boxes in each node.
+     * @param capacity The number of nodes to make room for initially.
+     */
+    public NodeStore(Map map, int numBoxes, int capacity) {
+        if (map.getNumCells() > maxCells)
+            throw new IllegalArgumentException("map has more than " +
+                    maxCells + " cells");
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive");
+
+        this.map = map;
+        this.numBoxes = numBoxes;
+        size = 0;
+        parents = new int[capacity];
+        depths = new int[capacity];
+        hashes = new int[capacity];
+        players = new char[capacity];
+        mins = new char[capacity];
+        boxes = new char[capacity * numBoxes];
+        closed = new ClosedSet(this, capacity);
+    }
+
+    /**
+     * @return the number of nodes in the store.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the map the nodes belong to.
+     */
+    public Map getMap() {
+        return map;
+    }
+
+    /**
+     * @return the number of boxes in each node.
+     */
+    public int getNumBoxes() {
+        return numBoxes;
+    }
+
+    /**
+     * @return the memory allocated by the store and its closed set, in bytes.
+     */
+    public long getMemoryUsage() {
+        return (long)parents.length * (16 + 2 * numBoxes) +
+            8L * closed.getNumSlots();
+    }
+
+    /**
+     * @return the closed set indexing the nodes.
+     */
+    public ClosedSet getClosedSet() {
+        return closed;
+    }
+
+    /**
+     * @param id The id of a node.
+     * @return the id of the parent of the node, or -1 for the start node.
+     */
+    public int getParent(int id) {
+        return parents[id];
+    }
+
+    /**
+     * @param id The id of a node.
+     * @return the number of pushes from the start node to the node.
+     */
+    public int getDepth(int id) {
+        return depths[id];
+    }
+
+    /**
+     * @param id The id of a node.
+     * @return the hash of the node.
+     */
+    public int getHash(int id) {
+        return hashes[id];
+    }
+
+    /**
+     * Add a state to the store unless an equal node already is in it. Equal
+     * nodes have the same boxes and the same minimum reachable cell.
+     *
+     * @param state The state to add.
+     * @param parent The id of the node the state was generated from, or -1.
+     * @return the id of the new node, or -1 if the state already was in the
+     * store.
+     */
+    public int add(State state, int parent) {
+        int id = size;
+        int hash = writeKey(state, id);
+        if (closed.add(id, hash) != id)
+            return -1;
+
+        parents[id] = parent;
+        depths[id] = parent < 0 ? 0 : depths[parent] + 1;
+        players[id] = (char)map.getIndex(state.getPlayer());
+        size++;
+        return id;
+    }
+
+    /**
+     * Move a node below another parent, after a shorter path to it has been
+     * found. The depths of the descendants of the node are not changed.
+     *
+     * @param id The id of the node.
+     * @param state The state of the node, reached from the new parent.
+     * @param parent The id of the new parent.
+     */
+    public void reparent(int id, State state, int parent) {
+        parents[id] = parent;
+        depths[id] = depths[parent] + 1;
+        players[id] = (char)map.getIndex(state.getPlayer());
+    }
+
+    /**
+     * Find the node of a state.
+     *
+     * @param state The state to look for.
+     * @return the id of the node with the same boxes and the same minimum
+     * reachable cell as the state, or -1 if there is none.
+     */
+    public int find(State state) {
+        return closed.find(size, writeKey(state, size));
+    }
+
+    /**
+     * Write the key of a state in place of a node. The node is only kept if
+     * the size of the store is increased afterwards.
+     *
+     * @param state The state.
+     * @param id The id of the node to write, which is the size of the store.
+     * @return the hash of the key.
+     */
+    private int writeKey(State state, int id) {
+        if (size == parents.length)
+            grow();
+
+        int offset = id * numBoxes;
+        Point[] stateBoxes = state.getBoxes();
+        int min = map.getIndex(state.getMinPosition());
+        int hash = mix(min);
+        for (int i = 0; i < numBoxes; i++) {
+            int cell = map.getIndex(stateBoxes[i]);
+            boxes[offset + i] = (char)cell;
+            hash = hash * 31 + mix(cell);
+        }
+        mins[id] = (char)min;
+        hashes[id] = hash;
+        return hash;
+    }
+
+    /**
+     * @return a snapshot of the nodes currently in the store.
+     */
+    public Snapshot getSnapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Read the nodes written from a snapshot into a new store. The hashes
+     * and the closed set are rebuilt.
+     *
+     * @param in The stream to read from.
+     * @param map The map the nodes belong to.
+     * @return the new store.
+     */
+    public static NodeStore read(DataInputStream in, Map map)
+            throws IOException {
+        int numBoxes = in.readInt();
+        int size = in.readInt();
+        if (numBoxes != map.getBoxes().size() || size < 0)
+            throw new IOException("nodes do not belong to the map");
+
+        NodeStore store = new NodeStore(map, numBoxes, Math.max(size, 1));
+        for (int id = 0; id < size; id++) {
+            store.parents[id] = in.readInt();
+            store.depths[id] = in.readInt();
+            store.players[id] = in.readChar();
+            int min = in.readChar();
+            int hash = mix(min);
+            for (int i = id * numBoxes; i < (id + 1) * numBoxes; i++) {
+                store.boxes[i] = in.readChar();
+                hash = hash * 31 + mix(store.boxes[i]);
+            }
+            store.mins[id] = (char)min;
+            store.hashes[id] = hash;
+            store.closed.add(id, hash);
+            store.size++;
+        }
+        return store;
+    }
+
+    /**
+     * Check if two nodes have the same key, i.e. the same boxes and the same
+     * minimum reachable cell.
+     *
+     * @param a The id of a node.
+     * @param b The id of another node.
+     * @return true iff the nodes have the same key.
+     */
+    boolean sameKey(int a, int b) {
+        if (mins[a] != mins[b])
+            return false;
+        int offsetA = a * numBoxes;
+        int offsetB = b * numBoxes;
+        for (int i = 0; i < numBoxes; i++)
+            if (boxes[offsetA + i] != boxes[offsetB + i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Scramble the bits of a value.
+     */
+    private static int mix(int value) {
+        value *= 0x9e3779b9;
+        return value ^ (value >>> 16);
+    }
+
+    /**
+     * Make room for twice as many nodes.
+     */
+    private void grow() {
+        int capacity = parents.length * 2;
+        parents = Arrays.copyOf(parents, capacity);
+        depths = Arrays.copyOf(depths, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        players = Arrays.copyOf(players, capacity);
+        mins = Arrays.copyOf(mins, capacity);
+        boxes = Arrays.copyOf(boxes, capacity * numBoxes);
+    }
+
+    /**
+     * Create a view of a node without its predecessors. The view is used for
+     * expanding the node.
+     *
+     * @param id The id of the node.
+     * @return a state with the boxes and player of the node.
+     */
+    public State getView(int id) {
+        State state = new State(map.getPoint(players[id]), getBoxes(id), map,
+                depths[id]);
+        state.setNode(id);
+        return state;
+    }
+
+    /**
+     * Create the chain of states leading to a node. The returned state is
+     * linked to its predecessors, so that the path to it can be built.
+     *
+     * @param id The id of the node.
+     * @return a state with the boxes and player of the node.
+     */
+    public State getState(int id) {
+        /* The depths of descendants of reparented nodes may be stale. */
+        int length = 0;
+        for (int i = id; i >= 0; i = parents[i])
+            length++;
+        int[] ids = new int[length];
+        for (int i = ids.length - 1; i >= 0; i--) {
+            ids[i] = id;
+            id = parents[id];
+        }
+
+        State state = null;
+        for (int i = 0; i < ids.length; i++) {
+            state = new State(map.getPoint(players[ids[i]]),
+                    getBoxes(ids[i]), map, state, true);
+            state.setNode(ids[i]);
+        }
+        return state;
+    }
+
+    /**
+     * @param id The id of a node.
+     * @return the sorted boxes of the node.
+     */
+    Point[] getBoxes(int id) {
+        Point[] points = new Point[numBoxes];
+        int offset = id * numBoxes;
+        for (int i = 0; i < numBoxes; i++)
+            points[i] = map.getPoint(boxes[offset + i]);
+        return points;
+    }
+}
@@ -0,0 +1,534 @@
+package Sokoban;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.Map.Entry;
+import java.util.AbstractMap.SimpleEntry;
+
+/**
+ * A class for shortening solutions that have already been found. A solution
+ * is improved in three stages:
+ *
+ * 1. Shortcuts between states on the solution are searched for with a bounded
+ *    breadth first search, which reduces the number of pushes.
+ * 2. Adjacent pushes of different boxes are swapped whenever that shortens
+ *    the player walks.
+ * 3. Optionally, each window of pushes is replaced by the segment with the
+ *    fewest player moves that reaches the same box formation.
+ *
+ * All stages stop when the time budget is spent or the token is cancelled.
+ */
+public class Optimizer {
+    /**
+     * The maximum number of nodes expanded by each local search.
+     */
+    static final int maxNodes = 10000;
+
+    /**
+     * The map the solutions belong to.
+     */
+    private Map map;
+
+    /**
+     * The maximum number of pushes covered by each local search.
+     */
+    private int window;
+
+    /**
+     * Tells whether the move optimal refinement should be run.
+     */
+    private boolean moveOptimal;
+
+    /**
+     * The token used for cancelling the optimization.
+     */
+    private CancellationToken token;
+
+    /**
+     * The cells that are walls.
+     */
+    private boolean[] walls;
+
+    /**
+     * The cells that are blocked by a wall or a box.
+     */
+    private boolean[] blocked;
+
+    /**
+     * The queue used by the walk searches.
+     */
+    private int[] queue;
+
+    /**
+     * The generation in which each cell was last visited.
+     */
+    private int[] visited;
+
+    /**
+     * The walking distance to each visited cell.
+     */
+    private int[] distance;
+
+    /**
+     * The current generation of the visited array.
+     */
+    private int generation;
+
+    /**
+     * A node in the move optimal search.
+     */
+    private static class Node implements Comparable<Node> {
+        /**
+         * The state of the node.
+         */
+        State state;
+
+        /**
+         * The number of player moves needed to reach this node.
+         */
+        int cost;
+
+        /**
+         * The number of pushes needed to reach this node.
+         */
+        int pushes;
+
+        /**
+         * The node this node is derived from.
+         */
+        Node parent;
+
+        /**
+         * Tells whether the cost includes the walk to the push following
+         * the segment.
+         */
+        boolean terminal;
+
+        Node(State state, int cost, int pushes, Node parent,
+                boolean terminal) {
+            this.state = state;
+            this.cost = cost;
+            this.pushes = pushes;
+            this.parent = parent;
+            this.terminal = terminal;
+        }
+
+        public int compareTo(Node node) {
+            return cost - node.cost;
+        }
+    }
+
+    /**
+     * A key identifying a box formation together with the exact player
+     * position, which is what the number of moves depends on.
+     */
+    private static class Key {
+        Point[] boxes;
+        Point player;
+
+        Key(State state) {
+            this.boxes = state.getBoxes();
+            this.player = state.getPlayer();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key key = (Key)o;
+            return player == key.player && Arrays.equals(boxes, key.boxes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(boxes) * 31 + player.hashCode();
+        }
+    }
+
+    /**
+     * Create a new Optimizer.
+     *
+     * @param map The map the solutions belong to.
+     * @param window The maximum number of pushes covered by a local search.
+     * @param moveOptimal true iff the move optimal refinement should be run.
+     * @param token The token used for cancelling the optimization.
+     */
+    public Optimizer(Map map, int window, boolean moveOptimal,
+            CancellationToken token) {
+        this.map = map;
+        this.window = window;
+        this.moveOptimal = moveOptimal;
+        this.token = token;
+
+        walls = new boolean[map.getNumCells()];
+        blocked = new boolean[map.getNumCells()];
+        queue = new int[map.getNumCells()];
+        visited = new int[map.getNumCells()];
+        distance = new int[map.getNumCells()];
+        generation = 0;
+
+        for (int i = 0; i < walls.length; i++)
+            walls[i] = map.isWall(map.getPoint(i));
+    }
+
+    /**
+     * Improve a solution.
+     *
+     * @param end The end state of the solution.
+     * @param time The time budget in milliseconds.
+     * @return the end state of the improved solution. The solution is never
+     * longer than the given one, and is returned as improved so far if the
+     * token is cancelled.
+     */
+    public State optimize(State end, long time) {
+        long deadline = System.currentTimeMillis() + time;
+        List<State> chain = new ArrayList<State>(Arrays.asList(end.getChain()));
+
+        shortenPushes(chain, deadline);
+        reorderPushes(chain, deadline);
+        if (moveOptimal)
+            refineMoves(chain, deadline);
+
+        State state = null;
+        for (State s : chain)
+            state = new State(s.getPlayer(), s.getBoxes().clone(), map, state,
+                    true);
+        return state;
+    }
+
+    /**
+     * @param deadline The time at which to stop.
+     * @return true iff the deadline has passed or the token is cancelled.
+     */
+    private boolean isStopped(long deadline) {
+        return System.currentTimeMillis() >= deadline || token.isCancelled();
+    }
+
+    /**
+     * Replace parts of the chain with shorter ones found by a bounded breadth
+     * first search from each state.
+     *
+     * @param chain The states of the solution.
+     * @param deadline The time at which to stop.
+     */
+    private void shortenPushes(List<State> chain, long deadline) {
+        for (int i = 0; i < chain.size() - 2; i++) {
+            if (isStopped(deadline))
+                return;
+
+            HashMap<State, Integer> index = new HashMap<State, Integer>();
+            for (int j = i + 2; j < chain.size(); j++)
+                index.put(chain.get(j), j);
+
+            List<State> shortcut = findShortcut(chain.get(i), i, index);
+            if (shortcut != null) {
+                int j = index.get(shortcut.get(shortcut.size() - 1));
+                chain.subList(i + 1, j + 1).clear();
+                chain.addAll(i + 1, shortcut);
+                /* Look for yet another shortcut from the same state. */
+                i--;
+            }
+        }
+    }
+
+    /**
+     * Search for a shorter way from a state to a later state in the chain.
+     *
+     * @param source The state to start from.
+     * @param i The position of the source in the chain.
+     * @param index The positions of the later states in the chain.
+     * @return the states of the shortcut, excluding the source, or null if no
+     * shortcut was found.
+     */
+    private List<State> findShortcut(State source, int i,
+            HashMap<State, Integer> index) {
+        Set<State> seen = new HashSet<State>();
+        List<State> level = new ArrayList<State>();
+        int nodes = 0;
+
+        seen.add(source);
+        level.add(source);
+
+        for (int depth = 1; depth <= window && nodes < maxNodes &&
+                !token.isCancelled(); depth++) {
+            List<State> next = new ArrayList<State>();
+            for (State state : level)
+                for (Entry<Direction, Point> move : state.getAvailableMoves()) {
+                    State child = State.getStateAfterMove(state, move);
+                    if (!seen.add(child))
+                        continue;
+
+                    Integer j = index.get(child);
+                    if (j != null && j - i > depth) {
+                        List<State> shortcut = new ArrayList<State>(depth);
+                        for (State s = child; s != source; s = s.getPrevious())
+                            shortcut.add(0, s);
+                        return shortcut;
+                    }
+
+                    next.add(child);
+                    nodes++;
+                }
+            level = next;
+        }
+        return null;
+    }
+
+    /**
+     * Swap adjacent pushes of different boxes whenever that reduces the number
+     * of player moves.
+     *
+     * @param chain The states of the solution.
+     * @param deadline The time at which to stop.
+     */
+    private void reorderPushes(List<State> chain, long deadline) {
+        boolean improved = true;
+
+        while (improved) {
+            improved = false;
+            for (int k = 1; k + 1 < chain.size(); k++) {
+                if (isStopped(deadline))
+                    return;
+
+                State a = chain.get(k - 1);
+                State b = chain.get(k);
+                State c = chain.get(k + 1);
+                int[] first = PathBuilder.findPush(map, a.getBoxes(),
+                        b.getBoxes());
+                int[] second = PathBuilder.findPush(map, b.getBoxes(),
+                        c.getBoxes());
+                if (second[0] == first[1])
+                    continue;
+
+                State b2 = push(a, second[0], second[1]);
+                State c2 = b2 == null ? null : push(b2, first[0], first[1]);
+                if (c2 == null)
+                    continue;
+
+                int before = cost(a, b) + cost(b, c) + tail(chain, c, k + 2);
+                int tail = tail(chain, c2, k + 2);
+                if (tail < 0)
+                    continue;
+                int after = cost(a, b2) + cost(b2, c2) + tail;
+
+                if (after < before) {
+                    chain.set(k, b2);
+                    chain.set(k + 1, c2);
+                    improved = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace each window of pushes with the segment reaching the same box
+     * formation using the fewest player moves.
+     *
+     * @param chain The states of the solution.
+     * @param deadline The time at which to stop.
+     */
+    private void refineMoves(List<State> chain, long deadline) {
+        for (int i = 0; i + 1 < chain.size(); i++) {
+            if (isStopped(deadline))
+                return;
+
+            int j = Math.min(i + window, chain.size() - 1);
+            List<State> segment = findCheaperSegment(chain, i, j);
+            if (segment != null) {
+                chain.subList(i + 1, j + 1).clear();
+                chain.addAll(i + 1, segment);
+            }
+        }
+    }
+
+    /**
+     * Search for a segment between two states of the chain with fewer player
+     * moves, using a uniform cost search over box formations and exact player
+     * positions.
+     *
+     * @param chain The states of the solution.
+     * @param i The position of the first state of the segment.
+     * @param j The position of the last state of the segment.
+     * @return the states of the cheaper segment, excluding the first state,
+     * or null if none was found.
+     */
+    private List<State> findCheaperSegment(List<State> chain, int i, int j) {
+        State target = chain.get(j);
+        int original = tail(chain, target, j + 1);
+        for (int t = i + 1; t <= j; t++)
+            original += cost(chain.get(t - 1), chain.get(t));
+
+        int next = -1;
+        if (j + 1 < chain.size()) {
+            int[] push = PathBuilder.findPush(map, target.getBoxes(),
+                    chain.get(j + 1).getBoxes());
+            next = 2*push[0] - push[1];
+        }
+
+        PriorityQueue<Node> open = new PriorityQueue<Node>();
+        HashMap<Key, Integer> best = new HashMap<Key, Integer>();
+        int expanded = 0;
+
+        open.add(new Node(chain.get(i), 0, 0, null, false));
+
+        while (!open.isEmpty() && expanded < maxNodes &&
+                !token.isCancelled()) {
+            Node node = open.poll();
+
+            if (node.terminal) {
+                if (node.cost >= original)
+                    return null;
+                List<State> segment = new ArrayList<State>();
+                for (Node n = node; n.parent != null; n = n.parent)
+                    segment.add(0, n.state);
+                return segment;
+            }
+
+            Integer cost = best.get(new Key(node.state));
+            if (cost != null && cost < node.cost)
+                continue;
+            expanded++;
+
+            walk(node.state.getBoxes(), map.getIndex(node.state.getPlayer()));
+
+            if (Arrays.equals(node.state.getBoxes(), target.getBoxes()) &&
+                    node.pushes > 0) {
+                if (next == -1)
+                    open.add(new Node(node.state, node.cost, node.pushes,
+                                node.parent, true));
+                else if (visited[next] == generation)
+                    open.add(new Node(node.state, node.cost + distance[next],
+                                node.pushes, node.parent, true));
+            }
+
+            if (node.pushes == j - i)
+                continue;
+
+            for (Entry<Direction, Point> move : node.state.getAvailableMoves()) {
+                int from = map.getIndex(move.getValue()) -
+                    map.getOffset(move.getKey());
+                int c = node.cost + distance[from] + 1;
+                State child = State.getStateAfterMove(node.state, move);
+                Key key = new Key(child);
+                Integer old = best.get(key);
+                if (old != null && old <= c)
+                    continue;
+                best.put(key, c);
+                open.add(new Node(child, c, node.pushes + 1, node, false));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Apply a push to a state, if it is legal.
+     *
+     * @param state The state to push in.
+     * @param from The cell index of the box to push.
+     * @param to The cell index the box is pushed to.
+     * @return the state after the push, or null if the push is illegal.
+     */
+    private State push(State state, int from, int to) {
+        Point target = map.getPoint(to);
+        if (map.isWall(target) || state.hasBox(target))
+            return null;
+        if (walk(state.getBoxes(), map.getIndex(state.getPlayer()),
+                    2*from - to) < 0)
+            return null;
+
+        Point box = map.getPoint(from);
+        Point dst = map.getPoint(to);
+        Direction d = Direction.getDirection(dst.x - box.x, dst.y - box.y);
+        return State.getStateAfterMove(state,
+                new SimpleEntry<Direction, Point>(d, box));
+    }
+
+    /**
+     * Calculate the number of player moves needed to go from one state to the
+     * next, including the push.
+     *
+     * @param a The first state.
+     * @param b The next state, which differs from a by one push.
+     * @return the number of moves, or a large value if b cannot be reached.
+     */
+    private int cost(State a, State b) {
+        int[] push = PathBuilder.findPush(map, a.getBoxes(), b.getBoxes());
+        int steps = walk(a.getBoxes(), map.getIndex(a.getPlayer()),
+                2*push[0] - push[1]);
+        return steps < 0 ? Integer.MAX_VALUE / 4 : steps + 1;
+    }
+
+    /**
+     * Calculate the walk from a state to the position of the push at the
+     * given position of the chain.
+     *
+     * @param chain The states of the solution.
+     * @param state The state to walk in.
+     * @param t The position in the chain of the state after the push.
+     * @return the number of steps to walk, 0 if there is no such push or -1 if
+     * the push position cannot be reached.
+     */
+    private int tail(List<State> chain, State state, int t) {
+        if (t >= chain.size())
+            return 0;
+        int[] push = PathBuilder.findPush(map, chain.get(t - 1).getBoxes(),
+                chain.get(t).getBoxes());
+        return walk(state.getBoxes(), map.getIndex(state.getPlayer()),
+                2*push[0] - push[1]);
+    }
+
+    /**
+     * Run a breadth first search for the player from a cell. The distances
+     * are left in the distance array.
+     *
+     * @param boxes The boxes blocking the player.
+     * @param from The cell index of the player.
+     * @param to A cell index to return the distance to.
+     * @return the distance to the given cell, or -1 if it is unreachable.
+     */
+    private int walk(Point[] boxes, int from, int to) {
+        walk(boxes, from);
+        return visited[to] == generation ? distance[to] : -1;
+    }
+
+    /**
+     * Run a breadth first search for the player from a cell. The distances
+     * are left in the distance array.
+     *
+     * @param boxes The boxes blocking the player.
+     * @param from The cell index of the player.
+     */
+    private void walk(Point[] boxes, int from) {
+        if (++generation == 0) {
+            Arrays.fill(visited, 0);
+            generation = 1;
+        }
+
+        System.arraycopy(walls, 0, blocked, 0, walls.length);
+        for (Point box : boxes)
+            blocked[map.getIndex(box)] = true;
+
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = from;
+        visited[from] = generation;
+        distance[from] = 0;
+
+        while (head < tail) {
+            int current = queue[head++];
+            for (Direction d : Direction.getArray()) {
+                int next = current + map.getOffset(d);
+                if (!blocked[next] && visited[next] != generation) {
+                    visited[next] = generation;
+                    distance[next] = distance[current] + 1;
+                    queue[tail++] = next;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,413 @@
+package Sokoban;
+
+import java.util.Arrays;
+
+/**
+ * A class for reconstructing the player movements of a solution from the
+ * chain of states leading to it. The player walks between the pushes are found
+ * with a breadth first search on a flat board, using arrays that are reused
+ * between searches.
+ *
+ * A transition between two states may also move a single box by several
+ * pushes, as done by the macro moves of a search. The pushes are then found
+ * with a breadth first search over the positions of the box and the side the
+ * player pushes it from.
+ *
+ * A PathBuilder is not thread safe, but it can be reused for any number of
+ * state chains of its map.
+ */
+public class PathBuilder {
+    /**
+     * The map the states are derived from.
+     */
+    private Map map;
+
+    /**
+     * The cells that are blocked by a wall or a box.
+     */
+    private boolean[] blocked;
+
+    /**
+     * The queue used by the search.
+     */
+    private int[] queue;
+
+    /**
+     * The generation in which each cell was last visited.
+     */
+    private int[] visited;
+
+    /**
+     * The current generation. Increased by each search so that the visited
+     * array never has to be cleared.
+     */
+    private int generation;
+
+    /**
+     * The direction ordinal used for reaching each cell.
+     */
+    private byte[] parent;
+
+    /**
+     * The cell index offset of each direction, indexed by ordinal.
+     */
+    private int[] offsets;
+
+    /**
+     * The box search node each box search node was reached from, or -1. A
+     * node is the cell of the box times the number of directions plus the
+     * ordinal of the last push.
+     */
+    private int[] boxParent;
+
+    /**
+     * The queue used by the box search.
+     */
+    private int[] boxQueue;
+
+    /**
+     * The generation in which each box search node was last visited.
+     */
+    private int[] boxVisited;
+
+    /**
+     * The current generation of the box search.
+     */
+    private int boxGeneration;
+
+    /**
+     * The movements found so far.
+     */
+    private byte[] path;
+
+    /**
+     * The number of movements found so far.
+     */
+    private int length;
+
+    /**
+     * Create a new PathBuilder.
+     *
+     * @param map The map the states are derived from.
+     */
+    public PathBuilder(Map map) {
+        this.map = map;
+        blocked = new boolean[map.getNumCells()];
+        queue = new int[map.getNumCells()];
+        visited = new int[map.getNumCells()];
+        parent = new byte[map.getNumCells()];
+        offsets = new int[Direction.getArray().length];
+        path = new byte[64];
+        generation = 0;
+
+        for (Direction d : Direction.getArray())
+            offsets[d.ordinal()] = map.getOffset(d);
+    }
+
+    /**
+     * Calculate the player movements needed to go through a chain of states.
+     * Each state in the chain must differ from the previous one by the
+     * position of a single box.
+     *
+     * @param chain The states, starting with the start state.
+     * @return the movements, each given as Direction.ordinal().
+     */
+    public byte[] build(State[] chain) {
+        length = 0;
+        setBoard(chain[0].getBoxes());
+        int player = map.getIndex(chain[0].getPlayer());
+
+        for (int i = 1; i < chain.length; i++) {
+            int[] push = findPush(map, chain[i-1].getBoxes(),
+                    chain[i].getBoxes());
+            int[] cells = getBoxPath(push[0], push[1], player);
+
+            for (int j = 1; j < cells.length; j++) {
+                int offset = cells[j] - cells[j-1];
+                walk(player, cells[j-1] - offset);
+
+                byte d = 0;
+                while (offsets[d] != offset)
+                    d++;
+                append(d);
+
+                blocked[cells[j-1]] = false;
+                blocked[cells[j]] = true;
+                player = cells[j-1];
+            }
+        }
+
+        byte[] result = new byte[length];
+        System.arraycopy(path, 0, result, 0, length);
+        return result;
+    }
+
+    /**
+     * Expand the transitions of a chain of states that move a box by several
+     * pushes, so that each state differs from the previous one by a single
+     * push.
+     *
+     * @param end The last state of the chain.
+     * @return the last state of the expanded chain, linked to the start state
+     * of the chain.
+     */
+    public State unfold(State end) {
+        State[] chain = end.getChain();
+        State state = chain[0];
+        setBoard(state.getBoxes());
+        int player = map.getIndex(state.getPlayer());
+
+        for (int i = 1; i < chain.length; i++) {
+            int[] push = findPush(map, chain[i-1].getBoxes(),
+                    chain[i].getBoxes());
+            int[] cells = getBoxPath(push[0], push[1], player);
+
+            for (int j = 1; j < cells.length; j++) {
+                Point[] boxes = state.getBoxes().clone();
+                for (int k = 0; k < boxes.length; k++)
+                    if (map.getIndex(boxes[k]) == cells[j-1])
+                        boxes[k] = map.getPoint(cells[j]);
+                Arrays.sort(boxes);
+                state = new State(map.getPoint(cells[j-1]), boxes, map, state,
+                        true);
+
+                blocked[cells[j-1]] = false;
+                blocked[cells[j]] = true;
+                player = cells[j-1];
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Set the board to the walls of the map and the given boxes.
+     *
+     * @param boxes The boxes.
+     */
+    void setBoard(Point[] boxes) {
+        for (int i = 0; i < blocked.length; i++)
+            blocked[i] = map.isWall(map.getPoint(i));
+        for (Point box : boxes)
+            blocked[map.getIndex(box)] = true;
+    }
+
+    /**
+     * Find the pushes moving a box between two cells on the current board.
+     *
+     * @param from The cell of the box.
+     * @param to The cell the box is moved to.
+     * @param player The cell of the player.
+     * @return the cells of the box after each push, starting with from.
+     */
+    private int[] getBoxPath(int from, int to, int player) {
+        for (int offset : offsets)
+            if (to - from == offset)
+                return new int[] { from, to };
+
+        int[] cells = findBoxPath(from, to, player);
+        if (cells == null)
+            throw new IllegalStateException("no pushes between states");
+        return cells;
+    }
+
+    /**
+     * Find the fewest pushes moving a box between two cells on the current
+     * board. The other boxes are not moved.
+     *
+     * @param from The cell of the box.
+     * @param to The cell the box should be moved to.
+     * @param player The cell of the player.
+     * @return the cells of the box after each push, starting with from, or
+     * null if the box cannot be moved there.
+     */
+    int[] findBoxPath(int from, int to, int player) {
+        int n = offsets.length;
+        if (boxParent == null) {
+            boxParent = new int[blocked.length * n];
+            boxQueue = new int[blocked.length * n];
+            boxVisited = new int[blocked.length * n];
+        }
+        if (++boxGeneration == 0) {
+            Arrays.fill(boxVisited, 0);
+            boxGeneration = 1;
+        }
+
+        int head = 0;
+        int tail = 0;
+        int found = -1;
+
+        /* Each node is entered by pushing the box from the player's side. */
+        reach(player);
+        blocked[from] = false;
+        for (int d = 0; d < n; d++)
+            if (visited[from - offsets[d]] == generation &&
+                    !blocked[from + offsets[d]]) {
+                int node = (from + offsets[d]) * n + d;
+                boxVisited[node] = boxGeneration;
+                boxParent[node] = -1;
+                boxQueue[tail++] = node;
+            }
+
+        while (head < tail && found < 0) {
+            int node = boxQueue[head++];
+            int box = node / n;
+            if (box == to) {
+                found = node;
+                break;
+            }
+
+            blocked[box] = true;
+            reach(box - offsets[node % n]);
+            blocked[box] = false;
+            for (int d = 0; d < n; d++) {
+                int next = (box + offsets[d]) * n + d;
+                if (visited[box - offsets[d]] == generation &&
+                        !blocked[box + offsets[d]] &&
+                        boxVisited[next] != boxGeneration) {
+                    boxVisited[next] = boxGeneration;
+                    boxParent[next] = node;
+                    boxQueue[tail++] = next;
+                }
+            }
+        }
+        blocked[from] = true;
+
+        if (found < 0)
+            return null;
+        int pushes = 0;
+        for (int node = found; node >= 0; node = boxParent[node])
+            pushes++;
+        int[] cells = new int[pushes + 1];
+        cells[0] = from;
+        for (int node = found; node >= 0; node = boxParent[node])
+            cells[pushes--] = node / n;
+        return cells;
+    }
+
+    /**
+     * Mark the cells reachable from a cell on the current board as visited in
+     * a new generation.
+     *
+     * @param from The cell index of the player.
+     */
+    private void reach(int from) {
+        if (++generation == 0) {
+            Arrays.fill(visited, 0);
+            generation = 1;
+        }
+
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = from;
+        visited[from] = generation;
+
+        while (head < tail) {
+            int current = queue[head++];
+            for (int d = 0; d < offsets.length; d++) {
+                int next = current + offsets[d];
+                if (!blocked[next] && visited[next] != generation) {
+                    visited[next] = generation;
+                    queue[tail++] = next;
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the box that was moved between two sets of boxes, which differ by a
+     * single box.
+     *
+     * @param map The map the boxes belong to.
+     * @param before The sorted boxes before the move.
+     * @param after The sorted boxes after the move.
+     * @return an array holding the cell index of the moved box before and
+     * after the move.
+     */
+    static int[] findPush(Map map, Point[] before, Point[] after) {
+        int from = -1;
+        int to = -1;
+
+        /* Both arrays are sorted, so the moved box is found in one pass. */
+        for (int j = 0, k = 0; from == -1 || to == -1; ) {
+            int cmp = j == before.length ? 1 : k == after.length ? -1 :
+                before[j].compareTo(after[k]);
+            if (cmp == 0) {
+                j++;
+                k++;
+            } else if (cmp < 0) {
+                from = map.getIndex(before[j++]);
+            } else {
+                to = map.getIndex(after[k++]);
+            }
+        }
+        return new int[] { from, to };
+    }
+
+    /**
+     * Find the shortest walk between two cells on the current board and append
+     * it to the path.
+     *
+     * @param from The cell index of the player.
+     * @param to The cell index to reach.
+     */
+    private void walk(int from, int to) {
+        if (++generation == 0) {
+            Arrays.fill(visited, 0);
+            generation = 1;
+        }
+
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = from;
+        visited[from] = generation;
+
+        while (head < tail && visited[to] != generation) {
+            int current = queue[head++];
+            for (int d = 0; d < offsets.length; d++) {
+                int next = current + offsets[d];
+                if (!blocked[next] && visited[next] != generation) {
+                    visited[next] = generation;
+                    parent[next] = (byte)d;
+                    queue[tail++] = next;
+                }
+            }
+        }
+
+        if (visited[to] != generation)
+            throw new IllegalStateException("no walk between pushes");
+
+        /* Count the steps, then write them backwards into the path. */
+        int steps = 0;
+        for (int cell = to; cell != from; cell -= offsets[parent[cell]])
+            steps++;
+
+        ensureCapacity(length + steps);
+        int index = length + steps;
+        for (int cell = to; cell != from; cell -= offsets[parent[cell]])
+            path[--index] = parent[cell];
+        length += steps;
+    }
+
+    /**
+     * Append a single movement to the path.
+     *
+     * @param d The direction ordinal of the movement.
+     */
+    private void append(byte d) {
+        ensureCapacity(length + 1);
+        path[length++] = d;
+    }
+
+    /**
+     * Make sure the path can hold the given number of movements.
+     *
+     * @param capacity The needed capacity.
+     */
+    private void ensureCapacity(int capacity) {
+        if (capacity > path.length) {
+            byte[] larger = new byte[Math.max(capacity, 2*path.length)];
+            System.arraycopy(path, 0, larger, 0, length);
+            path = larger;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package Sokoban;
+
+/**
+ * A listener told about each push pruned during move generation.
+ */
+public interface PruneListener {
+    /**
+     * Called for each pruned push.
+     *
+     * @param reason The reason for pruning.
+     */
+    void pruned(SearchMetrics.Prune reason);
+}
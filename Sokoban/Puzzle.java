@@ -18,9 +18,20 @@ public class Puzzle {
      * @return the puzzle with the given number, if exists.
      */
     public static String getPuzzleFromSamples(int number) {
-        try {
-            BufferedReader reader = new BufferedReader(
-                    new FileReader(sampleFile));
+        return getPuzzleFromFile(sampleFile, number);
+    }
+
+    /**
+     * Getter for a specific puzzle in a collection file. The file is expected
+     * to have the same format as the sample files.
+     *
+     * @param file The name of the collection file.
+     * @param number The number of the puzzle to get.
+     * @return the puzzle with the given number, if exists.
+     */
+    public static String getPuzzleFromFile(String file, int number) {
+        try (BufferedReader reader =
+                new BufferedReader(new FileReader(file))) {
             String line;
             StringBuffer mapString = new StringBuffer();
             boolean inMap = false;
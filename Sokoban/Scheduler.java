@@ -0,0 +1,285 @@
+package Sokoban;
+
+import java.util.List;
+
+/**
+ * A scheduler running several searches of the same map in turns, each for a
+ * short time slice, until one of them finds a solution. The searches are the
+ * arms of a bandit, and the next slice goes to the search with the highest
+ * upper confidence bound (UCB1) of its reward.
+ *
+ * The reward of a slice is taken from the best state of the open list of the
+ * search: how much closer it is to the goals than the closest state the
+ * search had seen before, and how many more boxes it has on goals than the
+ * most the search had seen. A slice whose open list grows by every child it
+ * generates is worth a little less than one in which many children are
+ * pruned or already known. Searches that are making progress thus get most
+ * of the time, while the others still get a slice now and then.
+ */
+public class Scheduler {
+    /**
+     * The length of a time slice, in milliseconds.
+     */
+    static final int sliceLength = 250;
+
+    /**
+     * The weight of the exploration term of the upper confidence bound.
+     */
+    static final float exploration = 1;
+
+    /**
+     * The searches to run.
+     */
+    private List<Search> searches;
+
+    /**
+     * The options used for printing progress.
+     */
+    private SolverConfig config;
+
+    /**
+     * The token used for cancelling the searches.
+     */
+    private CancellationToken token;
+
+    /**
+     * The number of slices given to each search.
+     */
+    private int[] slices;
+
+    /**
+     * The sum of the rewards of the slices of each search.
+     */
+    private float[] rewards;
+
+    /**
+     * The smallest goal distance of the best state of each search.
+     */
+    private int[] bestDistances;
+
+    /**
+     * The most boxes on goals in the best state of each search.
+     */
+    private int[] bestDone;
+
+    /**
+     * The goal distance of the start state.
+     */
+    private int startDistance;
+
+    /**
+     * The number of slices given to all searches.
+     */
+    private int numSlices;
+
+    /**
+     * The end state, or null if no solution has been found.
+     */
+    private State endState;
+
+    /**
+     * Create a new Scheduler.
+     *
+     * @param searches The searches to run, all of the same map and not run
+     * before.
+     * @param config The options used for printing progress.
+     * @param token The token used for cancelling the searches.
+     */
+    public Scheduler(List<Search> searches, SolverConfig config,
+            CancellationToken token) {
+        if (searches.isEmpty())
+            throw new IllegalArgumentException("no searches to schedule");
+
+        this.searches = searches;
+        this.config = config;
+        this.token = token;
+        slices = new int[searches.size()];
+        rewards = new float[searches.size()];
+        bestDistances = new int[searches.size()];
+        bestDone = new int[searches.size()];
+        numSlices = 0;
+        endState = null;
+
+        State start = searches.get(0).peek();
+        startDistance = Math.max(1, start.getGoalDistance());
+        for (int i = 0; i < searches.size(); i++) {
+            bestDistances[i] = start.getGoalDistance();
+            bestDone[i] = start.getNumBoxesInGoal();
+        }
+    }
+
+    /**
+     * @return the end state, or null if no solution has been found.
+     */
+    public State getEndState() {
+        return endState;
+    }
+
+    /**
+     * @return true iff no search can run any more and at least one of them
+     * stopped because it outgrew its memory budget.
+     */
+    public boolean isOutOfBudget() {
+        boolean outOfBudget = false;
+        for (Search search : searches) {
+            if (search.isOutOfBudget())
+                outOfBudget = true;
+            else if (!search.isExhausted())
+                return false;
+        }
+        return outOfBudget;
+    }
+
+    /**
+     * @param search The index of a search.
+     * @return the number of slices given to the search.
+     */
+    public int getNumSlices(int search) {
+        return slices[search];
+    }
+
+    /**
+     * @return the number of inspected nodes in all searches.
+     */
+    public int getNumInspected() {
+        int num = 0;
+        for (Search search : searches)
+            num += search.getNumInspected();
+        return num;
+    }
+
+    /**
+     * @return the largest size of the open list of any search.
+     */
+    public int getMaxOpen() {
+        int max = 0;
+        for (Search search : searches)
+            max = Math.max(max, search.getMaxOpen());
+        return max;
+    }
+
+    /**
+     * @return the number of nodes in the closed sets of all searches.
+     */
+    public int getMaxClosed() {
+        int num = 0;
+        for (Search search : searches)
+            num += search.getMaxClosed();
+        return num;
+    }
+
+    /**
+     * Run the searches in turns until one of them finds a solution, all of
+     * them are exhausted, the time limit is reached or the token is
+     * cancelled.
+     *
+     * @param limit The time limit.
+     * @return the number of nodes expanded by all searches.
+     */
+    public int run(int limit) {
+        int numExpanded = 0;
+        long start = System.currentTimeMillis();
+
+        while (endState == null && !token.isCancelled()) {
+            int left = (int)(limit - (System.currentTimeMillis() - start));
+            int next = select();
+            if (left <= 0 || next < 0)
+                break;
+
+            Search search = searches.get(next);
+            int open = search.getOpenSize();
+            int inspected = search.getNumInspected();
+            numExpanded += search.run(Math.min(sliceLength, left));
+            endState = search.getEndState();
+
+            slices[next]++;
+            numSlices++;
+            rewards[next] += getReward(next, open, inspected);
+            if (config.getPrintProgress())
+                printInfo(next, start);
+        }
+
+        if (config.getPrintProgress())
+            System.out.println();
+        return numExpanded;
+    }
+
+    private void printInfo(int search, long start) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < searches.size(); i++)
+            builder.append(String.format("%d: %4d/%.2f ", i, slices[i],
+                        slices[i] == 0 ? 0 : rewards[i] / slices[i]));
+        System.out.printf("slices: %s, distance: %4d, time: %2.2f s\r",
+                builder, bestDistances[search],
+                (float)(System.currentTimeMillis()-start)/1000);
+    }
+
+    /**
+     * Choose the search to run next. Each search is run once before the
+     * upper confidence bounds are compared.
+     *
+     * @return the index of the search, or -1 if all are exhausted or out of
+     * budget.
+     */
+    private int select() {
+        int best = -1;
+        double bestBound = 0;
+        for (int i = 0; i < searches.size(); i++) {
+            if (searches.get(i).isExhausted() ||
+                    searches.get(i).isOutOfBudget())
+                continue;
+            if (slices[i] == 0)
+                return i;
+
+            double bound = rewards[i] / slices[i] + exploration *
+                Math.sqrt(2 * Math.log(numSlices) / slices[i]);
+            if (best == -1 || bound > bestBound) {
+                best = i;
+                bestBound = bound;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Find the reward of the slice a search was just given, and remember the
+     * progress it made.
+     *
+     * @param index The index of the search.
+     * @param open The size of the open list before the slice.
+     * @param inspected The number of inspected nodes before the slice.
+     * @return the reward, between 0 and 1.
+     */
+    private float getReward(int index, int open, int inspected) {
+        Search search = searches.get(index);
+        State best = search.peek();
+        float progress = 0;
+        if (best != null) {
+            int distance = best.getGoalDistance();
+            if (distance < bestDistances[index]) {
+                progress += (float)(bestDistances[index] - distance) /
+                    startDistance;
+                bestDistances[index] = distance;
+            }
+            int done = best.getNumBoxesInGoal();
+            if (done > bestDone[index]) {
+                progress += (float)(done - bestDone[index]) /
+                    best.getBoxes().length;
+                bestDone[index] = done;
+            }
+        }
+
+        int generated = search.getNumInspected() - inspected;
+        float growth = generated == 0 ? 1 : Math.max(0, Math.min(1,
+                    (float)(search.getOpenSize() - open) / generated));
+        return (9 * Math.min(1, progress) + 1 - growth) / 10;
+    }
+
+    /**
+     * Release the files of all searches. The searches cannot be run again.
+     */
+    public void close() {
+        for (Search search : searches)
+            search.close();
+    }
+}
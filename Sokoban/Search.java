@@ -0,0 +1,624 @@
+package Sokoban;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A best first search for a solution of a map. The search keeps its nodes in
+ * a NodeStore and its open list in a Frontier, and can be run several times
+ * with a new time limit each, continuing where the last run stopped.
+ *
+ * A search can be saved to a checkpoint file and resumed from it, also in
+ * another process. A checkpoint holds the nodes of the store, the ids of the
+ * open nodes and the counters of the search. Taking a checkpoint only copies
+ * the ids of the open nodes, since the nodes of the store are never changed
+ * once added; the file is then written by a background thread while the
+ * search goes on.
+ */
+public class Search {
+    /**
+     * The magic number at the start of each checkpoint.
+     */
+    static final int magic = 0x534b4350;
+
+    /**
+     * The version of the checkpoint format.
+     */
+    static final int version = 2;
+
+    /**
+     * The map to solve.
+     */
+    private Map map;
+
+    /**
+     * The heuristic ordering the open list.
+     */
+    private Comparator<State> heuristic;
+
+    /**
+     * The phase of the solver this search belongs to, which tells which
+     * heuristic it uses.
+     */
+    private int phase;
+
+    /**
+     * The options used for searching.
+     */
+    private SolverConfig config;
+
+    /**
+     * The token used for cancelling the search.
+     */
+    private CancellationToken token;
+
+    /**
+     * The nodes of the search.
+     */
+    private NodeStore store;
+
+    /**
+     * The open list.
+     */
+    private Frontier queue;
+
+    /**
+     * The end state, or null if no solution has been found.
+     */
+    private State endState;
+
+    /**
+     * The number of expanded nodes in all runs.
+     */
+    private int numExpanded;
+
+    /**
+     * The number of inspected nodes in all runs.
+     */
+    private int numInspected;
+
+    /**
+     * The largest size of the open list.
+     */
+    private int maxOpen;
+
+    /**
+     * The thread writing the last checkpoint, or null.
+     */
+    private Thread writer;
+
+    /**
+     * Create a new Search.
+     *
+     * @param map The map to solve.
+     * @param heuristic The heuristic ordering the open list.
+     * @param phase The phase of the solver the search belongs to.
+     * @param config The options to use.
+     * @param token The token used for cancelling the search.
+     */
+    public Search(Map map, Comparator<State> heuristic, int phase,
+            SolverConfig config, CancellationToken token) {
+        this(map, heuristic, phase, config, token, new NodeStore(map,
+                    map.getBoxes().size(), config.getInitialCapacity()));
+
+        State root = new State(map.getStart(), map.getBoxes(), map);
+        root.setNode(store.add(root, -1));
+        queue.add(root);
+    }
+
+    /**
+     * Create a new Search with an empty open list.
+     */
+    private Search(Map map, Comparator<State> heuristic, int phase,
+            SolverConfig config, CancellationToken token, NodeStore store) {
+        this.map = map;
+        this.heuristic = heuristic;
+        this.phase = phase;
+        this.config = config;
+        this.token = token;
+        this.store = store;
+        queue = new Frontier(heuristic, store);
+        if (config.getMemoryBudget() > 0)
+            queue.setBudget(config.getMemoryBudget(),
+                    config.getSpillDirectory() == null ? null :
+                    new File(config.getSpillDirectory()));
+        endState = null;
+        numExpanded = 0;
+        numInspected = 0;
+        maxOpen = 0;
+    }
+
+    /**
+     * @return the phase of the solver this search belongs to.
+     */
+    public int getPhase() {
+        return phase;
+    }
+
+    /**
+     * @return the end state, or null if no solution has been found.
+     */
+    public State getEndState() {
+        return endState;
+    }
+
+    /**
+     * @return true iff the whole reachable state space has been searched.
+     */
+    public boolean isExhausted() {
+        return queue.isEmpty();
+    }
+
+    /**
+     * @return true iff the search stopped because its node store outgrew the
+     * memory budget.
+     */
+    public boolean isOutOfBudget() {
+        return queue.isOutOfBudget();
+    }
+
+    /**
+     * @return the best state of the open list, or null if it is empty.
+     */
+    public State peek() {
+        return queue.peek();
+    }
+
+    /**
+     * @return the number of states in the open list.
+     */
+    public int getOpenSize() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of expanded nodes in all runs.
+     */
+    public int getNumExpanded() {
+        return numExpanded;
+    }
+
+    /**
+     * @return the number of inspected nodes in all runs.
+     */
+    public int getNumInspected() {
+        return numInspected;
+    }
+
+    /**
+     * @return the largest size of the open list.
+     */
+    public int getMaxOpen() {
+        return maxOpen;
+    }
+
+    /**
+     * @return the number of nodes in the closed set.
+     */
+    public int getMaxClosed() {
+        return store.size();
+    }
+
+    private void printInfo(int expanded, int inspected, int visited,
+            int filled, long start) {
+        System.out.printf("expanded: %6d, inspected: %6d, queue: %6d, " +
+                "filled: %2d, time: %2.2f s\r", expanded, inspected, visited,
+                filled, (float)(System.currentTimeMillis()-start)/1000);
+    }
+
+    /**
+     * Run the search until a solution is found, the open list is empty, the
+     * time limit is reached or the token is cancelled.
+     *
+     * @param limit The time limit of this run.
+     * @return the number of nodes expanded in this run.
+     */
+    public int run(int limit) {
+        int numExpanded = 0;
+        int numInspected = 0;
+        int interval = config.getInterval();
+        boolean printProgress = config.getPrintProgress();
+        SearchMetrics metrics = config.getMetrics();
+        TraceRecorder trace = config.getTrace();
+        PruneListener listener = metrics;
+        boolean macros = config.getMacroMoves();
+        boolean packing = macros && config.getPackingPrune() &&
+            !map.getGoalRooms().isEmpty();
+        File checkpoint = getCheckpointFile(config, phase);
+
+        if (trace != null) {
+            trace.setNext(metrics);
+            listener = trace;
+        }
+
+        int i = 0;
+        long start = System.currentTimeMillis();
+        long lastCheckpoint = start;
+
+        int batchSize = config.getBatchSize();
+        State[] batch = new State[batchSize];
+        State[][] children = new State[batchSize][];
+        PruneLog[] logs = new PruneLog[batchSize];
+
+        search: while (endState == null && !queue.isEmpty()) {
+            if (numExpanded == 1 || i >= interval) {
+                if (printProgress) {
+                    printInfo(this.numExpanded, numInspected, queue.size(),
+                            queue.peek().getNumBoxesInGoal(), start);
+                }
+
+                long now = System.currentTimeMillis();
+                if (metrics != null) {
+                    metrics.openSize(queue.size());
+                    SearchEvent.commit(metrics, queue.size());
+                }
+                if (checkpoint != null && config.getCheckpointPeriod() > 0 &&
+                        now - lastCheckpoint >= config.getCheckpointPeriod()) {
+                    checkpoint(checkpoint, false);
+                    lastCheckpoint = now;
+                }
+
+                if (now-start >= limit || token.isCancelled() ||
+                        queue.isOutOfBudget())
+                    break;
+                i = 0;
+            }
+
+            int count = 0;
+            while (count < batchSize && !queue.isEmpty())
+                batch[count++] = queue.poll();
+            if (count > 1)
+                ForkJoinPool.commonPool().invoke(new ExpandTask(batch,
+                            children, listener == null ? null : logs, 0,
+                            count, macros, packing));
+
+            for (int j = 0; j < count; j++) {
+                State curState = batch[j];
+                batch[j] = null;
+                i++;
+                numExpanded++;
+                this.numExpanded++;
+                if (metrics != null)
+                    metrics.expanded();
+                int node = curState.getNode();
+                if (trace != null)
+                    trace.expanded(store.getHash(node),
+                            store.getParent(node) < 0 ? 0 :
+                            store.getHash(store.getParent(node)),
+                            curState.getNumMoves(), curState.getGoalDistance());
+
+                State[] next;
+                if (count > 1) {
+                    next = children[j];
+                    children[j] = null;
+                    if (listener != null)
+                        logs[j].replay(listener);
+                } else
+                    next = generate(curState, listener, macros, packing, false);
+
+                for (State nextState : next) {
+                    numInspected++;
+                    if (add(nextState, node, metrics, trace, macros))
+                        break search;
+                }
+            }
+        }
+
+        if (printProgress) {
+            printInfo(this.numExpanded, numInspected, queue.size(),
+                    endState == null ? 0 : endState.getNumBoxesInGoal(),
+                    start);
+            System.out.println();
+            System.out.println(store.getClosedSet());
+            System.out.println(queue);
+        }
+        if (metrics != null)
+            metrics.closedSet(store.getClosedSet());
+        this.numInspected += numInspected;
+
+        if (checkpoint != null && endState == null && !queue.isEmpty())
+            checkpoint(checkpoint, true);
+        if (endState != null || queue.isEmpty())
+            queue.close();
+        return numExpanded;
+    }
+
+    /**
+     * Generate the children of a state.
+     *
+     * @param curState The state to expand.
+     * @param listener The listener to tell about pruned pushes, or null.
+     * @param macros true iff macro moves are used.
+     * @param packing true iff pushes breaking the packing order are pruned.
+     * @param evaluate true iff the key and heuristic values of the children
+     * should be found right away, rather than when they are added.
+     * @return the children, in the order of the available moves.
+     */
+    private State[] generate(State curState, PruneListener listener,
+            boolean macros, boolean packing, boolean evaluate) {
+        List<Entry<Direction, Point>> moves =
+            curState.getAvailableMoves(listener);
+        List<State> children = new ArrayList<State>(moves.size());
+        for (Entry<Direction, Point> move : moves) {
+            State nextState = macros ?
+                State.getViewAfterMacro(curState, move) :
+                State.getViewAfterMove(curState, move);
+            if (packing && nextState.getPackingPenalty() >
+                    curState.getPackingPenalty()) {
+                if (listener != null)
+                    listener.pruned(SearchMetrics.Prune.PACKING_ORDER);
+                continue;
+            }
+            if (evaluate) {
+                /* Comparing a state to itself computes every value the
+                 * heuristic needs, which the state then caches. */
+                nextState.getMinPosition();
+                heuristic.compare(nextState, nextState);
+            }
+            children.add(nextState);
+        }
+        return children.toArray(new State[children.size()]);
+    }
+
+    /**
+     * Add a child to the store and, unless it is known or a goal, to the
+     * open list.
+     *
+     * @param nextState The child.
+     * @param node The id of the node of its parent.
+     * @param metrics The metrics to update, or null.
+     * @param trace The trace to record to, or null.
+     * @param macros true iff macro moves are used.
+     * @return true iff the child is a goal, which is then the end state.
+     */
+    private boolean add(State nextState, int node, SearchMetrics metrics,
+            TraceRecorder trace, boolean macros) {
+        if (metrics != null)
+            metrics.generated();
+
+        int next = store.add(nextState, node);
+        if (next < 0) {
+            if (metrics != null)
+                metrics.duplicate();
+            if (trace != null)
+                trace.duplicate();
+            return false;
+        }
+
+        nextState.setNode(next);
+        if (nextState.isGoalReached()) {
+            endState = store.getState(next);
+            if (macros)
+                endState = new PathBuilder(map).unfold(endState);
+            if (trace != null)
+                trace.goal(store.getHash(next));
+            return true;
+        }
+        if (metrics != null) {
+            long t = System.nanoTime();
+            queue.add(nextState);
+            metrics.heuristicTime(System.nanoTime() - t);
+        } else
+            queue.add(nextState);
+        if (queue.size() > maxOpen)
+            maxOpen = queue.size();
+        return false;
+    }
+
+    /**
+     * A task generating the children of a range of a batch of states, each
+     * state by a task of its own. Only the children of a state are touched by
+     * its task, and the prunes are logged to be told to the listener later,
+     * so the tasks share nothing that changes.
+     */
+    private class ExpandTask extends RecursiveAction {
+        /**
+         * The version of the serialized form of the task.
+         */
+        private static final long serialVersionUID = 1L;
+
+        State[] batch;
+        State[][] children;
+        PruneLog[] logs;
+        int from;
+        int to;
+        boolean macros;
+        boolean packing;
+
+        ExpandTask(State[] batch, State[][] children, PruneLog[] logs,
+                int from, int to, boolean macros, boolean packing) {
+            this.batch = batch;
+            this.children = children;
+            this.logs = logs;
+            this.from = from;
+            this.to = to;
+            this.macros = macros;
+            this.packing = packing;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                PruneLog log = null;
+                if (logs != null)
+                    log = logs[from] = new PruneLog();
+                children[from] = generate(batch[from], log, macros, packing,
+                        true);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new ExpandTask(batch, children, logs, from, middle,
+                        macros, packing),
+                    new ExpandTask(batch, children, logs, middle, to,
+                        macros, packing));
+        }
+    }
+
+    /**
+     * A listener keeping the pruned pushes of an expansion in order, so they
+     * can be told to another listener later.
+     */
+    private static class PruneLog implements PruneListener {
+        List<SearchMetrics.Prune> reasons =
+            new ArrayList<SearchMetrics.Prune>();
+
+        public void pruned(SearchMetrics.Prune reason) {
+            reasons.add(reason);
+        }
+
+        /**
+         * Tell another listener about the logged prunes.
+         *
+         * @param listener The listener.
+         */
+        void replay(PruneListener listener) {
+            for (SearchMetrics.Prune reason : reasons)
+                listener.pruned(reason);
+        }
+    }
+
+    /**
+     * Release the files of the search. The search cannot be run again.
+     */
+    public void close() {
+        queue.close();
+    }
+
+    /**
+     * @param config The options of a search.
+     * @param phase The phase of the search.
+     * @return the checkpoint file of the search, or null if no checkpoints
+     * are configured. The first phase uses the configured file, and each
+     * later phase n the file with the suffix .n.
+     */
+    static File getCheckpointFile(SolverConfig config, int phase) {
+        if (config.getCheckpointFile() == null)
+            return null;
+        return new File(config.getCheckpointFile() +
+                (phase == 0 ? "" : "." + phase));
+    }
+
+    /**
+     * Save the search to a checkpoint file. The file is written by a
+     * background thread, and replaced atomically when it is complete. If the
+     * last checkpoint still is being written, no new one is taken unless
+     * wait is set.
+     *
+     * @param file The checkpoint file.
+     * @param wait true iff the method should wait for the file to be written.
+     */
+    public void checkpoint(final File file, boolean wait) {
+        if (writer != null && writer.isAlive()) {
+            if (!wait)
+                return;
+            join();
+        }
+
+        final NodeStore.Snapshot nodes = store.getSnapshot();
+        final int[] open = queue.getNodes();
+        final int phase = this.phase;
+        final int expanded = numExpanded;
+        final int inspected = numInspected;
+        final int maxOpen = this.maxOpen;
+        final long fingerprint = map.getFingerprint();
+
+        writer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    File tmp = new File(file.getPath() + ".tmp");
+                    try (DataOutputStream out = new DataOutputStream(
+                                new BufferedOutputStream(
+                                    new FileOutputStream(tmp), 1 << 16))) {
+                        out.writeInt(magic);
+                        out.writeInt(version);
+                        out.writeLong(fingerprint);
+                        out.writeInt(phase);
+                        out.writeInt(expanded);
+                        out.writeInt(inspected);
+                        out.writeInt(maxOpen);
+                        nodes.write(out);
+                        out.writeInt(open.length);
+                        for (int id : open)
+                            out.writeInt(id);
+                    }
+                    Files.move(tmp.toPath(), file.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    System.err.println("checkpoint failed: " + e.getMessage());
+                }
+            }
+        }, "checkpoint");
+        writer.setDaemon(true);
+        writer.start();
+        if (wait)
+            join();
+    }
+
+    /**
+     * Wait for the last checkpoint to be written.
+     */
+    private void join() {
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Resume a search from a checkpoint file. The closed set is rebuilt from
+     * the nodes of the store.
+     *
+     * @param file The checkpoint file.
+     * @param map The map the search belongs to.
+     * @param config The options to use from now on.
+     * @param token The token used for cancelling the search.
+     * @return the resumed search.
+     */
+    public static Search resume(File file, Map map, SolverConfig config,
+            CancellationToken token) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != magic)
+                throw new IOException("not a checkpoint");
+            if (in.readInt() != version)
+                throw new IOException("unsupported checkpoint version");
+            if (in.readLong() != map.getFingerprint())
+                throw new IOException("checkpoint is of another map");
+
+            int phase = in.readInt();
+            int expanded = in.readInt();
+            int inspected = in.readInt();
+            int maxOpen = in.readInt();
+            NodeStore store = NodeStore.read(in, map);
+            if (store.size() == 0 || store.find(new State(map.getStart(),
+                            map.getBoxes(), map)) != 0)
+                throw new IOException("checkpoint does not start at the " +
+                        "start of the map");
+
+            Search search = new Search(map, Solver.getHeuristic(phase), phase,
+                    config, token, store);
+            search.numExpanded = expanded;
+            search.numInspected = inspected;
+            search.maxOpen = maxOpen;
+            for (int i = in.readInt(); i > 0; i--)
+                search.queue.add(store.getView(in.readInt()));
+            return search;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package Sokoban;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Java Flight Recorder event describing the progress of a search. The event
+ * is committed at each progress check of a search that collects metrics, and
+ * holds the totals of its SearchMetrics at that time.
+ */
+@Name("Sokoban.SearchProgress")
+@Label("Search Progress")
+@Category("Sokoban")
+@Description("Progress of a Sokoban search")
+public class SearchEvent extends Event {
+    @Label("Expanded")
+    long expanded;
+
+    @Label("Generated")
+    long generated;
+
+    @Label("Duplicates")
+    long duplicates;
+
+    @Label("Open List Size")
+    int openSize;
+
+    @Label("Pruned Blocked")
+    long prunedBlocked;
+
+    @Label("Pruned Forbidden")
+    long prunedForbidden;
+
+    @Label("Pruned Enclosed")
+    long prunedEnclosed;
+
+    @Label("Pruned Frozen")
+    long prunedFrozen;
+
+    @Label("Pruned Blocking Cycle")
+    long prunedBlockingCycle;
+
+    @Label("Pruned Inconsistent")
+    long prunedInconsistent;
+
+    @Label("Pruned Packing Order")
+    long prunedPackingOrder;
+
+    /**
+     * Commit an event holding the current values of the given metrics, if the
+     * event is enabled.
+     *
+     * @param metrics The metrics to report.
+     * @param openSize The current size of the open list.
+     */
+    static void commit(SearchMetrics metrics, int openSize) {
+        SearchEvent event = new SearchEvent();
+        if (!event.isEnabled())
+            return;
+
+        event.expanded = metrics.getExpanded();
+        event.generated = metrics.getGenerated();
+        event.duplicates = metrics.getDuplicates();
+        event.openSize = openSize;
+        event.prunedBlocked = metrics.getPruned(SearchMetrics.Prune.BLOCKED);
+        event.prunedForbidden =
+            metrics.getPruned(SearchMetrics.Prune.FORBIDDEN);
+        event.prunedEnclosed = metrics.getPruned(SearchMetrics.Prune.ENCLOSED);
+        event.prunedFrozen = metrics.getPruned(SearchMetrics.Prune.FROZEN);
+        event.prunedBlockingCycle =
+            metrics.getPruned(SearchMetrics.Prune.BLOCKING_CYCLE);
+        event.prunedInconsistent =
+            metrics.getPruned(SearchMetrics.Prune.INCONSISTENT);
+        event.prunedPackingOrder =
+            metrics.getPruned(SearchMetrics.Prune.PACKING_ORDER);
+        event.commit();
+    }
+}
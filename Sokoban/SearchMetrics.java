@@ -0,0 +1,310 @@
+package Sokoban;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Counters and histograms describing a search. All values are kept in striped
+ * counters, so a single SearchMetrics can be shared by several concurrent
+ * searches. A snapshot can be taken at any time with toJson().
+ */
+public class SearchMetrics implements PruneListener {
+    /**
+     * The reasons for which a push can be pruned during move generation.
+     */
+    public enum Prune {
+        /** The square the box is pushed to holds a wall or another box. */
+        BLOCKED,
+        /** The square the box is pushed to is a forbidden square. */
+        FORBIDDEN,
+        /** The push encloses an empty square that cannot be left. */
+        ENCLOSED,
+        /** The push freezes a neighboring box that is not on a goal. */
+        FROZEN,
+        /** The push creates a blocking cycle of walls and boxes. */
+        BLOCKING_CYCLE,
+        /** The push leaves three boxes that cannot reach three goals. */
+        INCONSISTENT,
+        /** The push breaks the packing order of a goal room. */
+        PACKING_ORDER;
+    };
+
+    /**
+     * A histogram with buckets for each power of two.
+     */
+    public static class Histogram {
+        /**
+         * The number of values in each bucket. Bucket i holds values v with
+         * 2^(i-1) <= v < 2^i, and bucket 0 holds values less than 1.
+         */
+        private final LongAdder[] buckets = new LongAdder[64];
+
+        /**
+         * The sum of all values.
+         */
+        private final LongAdder sum = new LongAdder();
+
+        /**
+         * Create a new Histogram.
+         */
+        public Histogram() {
+            for (int i = 0; i < buckets.length; i++)
+                buckets[i] = new LongAdder();
+        }
+
+        /**
+         * Add a value to the histogram.
+         *
+         * @param value The value to add.
+         */
+        public void record(long value) {
+            buckets[64 - Long.numberOfLeadingZeros(Math.max(0, value))]
+                .increment();
+            sum.add(value);
+        }
+
+        /**
+         * @return the number of values in the histogram.
+         */
+        public long getCount() {
+            long count = 0;
+            for (LongAdder bucket : buckets)
+                count += bucket.sum();
+            return count;
+        }
+
+        /**
+         * @return the sum of the values in the histogram.
+         */
+        public long getSum() {
+            return sum.sum();
+        }
+
+        /**
+         * Append the histogram as a JSON object to a buffer.
+         *
+         * @param buffer The buffer to append to.
+         */
+        void appendJson(StringBuilder buffer) {
+            buffer.append("{\"count\": ").append(getCount());
+            buffer.append(", \"sum\": ").append(getSum());
+            buffer.append(", \"buckets\": {");
+            boolean first = true;
+            for (int i = 0; i < buckets.length; i++) {
+                long count = buckets[i].sum();
+                if (count == 0)
+                    continue;
+                if (!first)
+                    buffer.append(", ");
+                buffer.append("\"<").append(1L << i).append("\": ")
+                    .append(count);
+                first = false;
+            }
+            buffer.append("}}");
+        }
+    }
+
+    /**
+     * The number of expanded states.
+     */
+    private final LongAdder expanded = new LongAdder();
+
+    /**
+     * The number of generated child states.
+     */
+    private final LongAdder generated = new LongAdder();
+
+    /**
+     * The number of child states that were already in the closed set.
+     */
+    private final LongAdder duplicates = new LongAdder();
+
+    /**
+     * The number of pruned pushes, indexed by Prune.ordinal().
+     */
+    private final LongAdder[] prunes = new LongAdder[Prune.values().length];
+
+    /**
+     * The time spent inserting states into the open list, in nanoseconds. The
+     * insertion is where the heuristic of a new state is evaluated.
+     */
+    private final Histogram heuristicTime = new Histogram();
+
+    /**
+     * The size of the open list, sampled at each progress check.
+     */
+    private final Histogram openSize = new Histogram();
+
+    /**
+     * The number of lookups in the closed sets of finished searches.
+     */
+    private final LongAdder closedLookups = new LongAdder();
+
+    /**
+     * The number of slots examined by the lookups in the closed sets.
+     */
+    private final LongAdder closedProbes = new LongAdder();
+
+    /**
+     * The longest probe sequence of any closed set.
+     */
+    private final LongAccumulator closedMaxProbe = new LongAccumulator(
+            new LongBinaryOperator() {
+                public long applyAsLong(long a, long b) {
+                    return Math.max(a, b);
+                }
+            }, 0);
+
+    /**
+     * The final load factor of each closed set, in percent.
+     */
+    private final Histogram closedLoad = new Histogram();
+
+    /**
+     * Create a new SearchMetrics.
+     */
+    public SearchMetrics() {
+        for (int i = 0; i < prunes.length; i++)
+            prunes[i] = new LongAdder();
+    }
+
+    /**
+     * Count an expanded state.
+     */
+    public void expanded() {
+        expanded.increment();
+    }
+
+    /**
+     * Count a generated child state.
+     */
+    public void generated() {
+        generated.increment();
+    }
+
+    /**
+     * Count a child state that was already in the closed set.
+     */
+    public void duplicate() {
+        duplicates.increment();
+    }
+
+    /**
+     * Count a pruned push.
+     *
+     * @param reason The reason for pruning.
+     */
+    public void pruned(Prune reason) {
+        prunes[reason.ordinal()].increment();
+    }
+
+    /**
+     * Record the time of evaluating the heuristic of a state.
+     *
+     * @param nanos The time in nanoseconds.
+     */
+    public void heuristicTime(long nanos) {
+        heuristicTime.record(nanos);
+    }
+
+    /**
+     * Record a sample of the open list size.
+     *
+     * @param size The size of the open list.
+     */
+    public void openSize(int size) {
+        openSize.record(size);
+    }
+
+    /**
+     * Record the statistics of the closed set of a finished search.
+     *
+     * @param closed The closed set.
+     */
+    public void closedSet(ClosedSet closed) {
+        closedLookups.add(closed.getLookups());
+        closedProbes.add(closed.getProbes());
+        closedMaxProbe.accumulate(closed.getMaxProbe());
+        closedLoad.record(Math.round(closed.getLoadFactor() * 100));
+    }
+
+    /**
+     * @return the number of expanded states.
+     */
+    public long getExpanded() {
+        return expanded.sum();
+    }
+
+    /**
+     * @return the number of generated child states.
+     */
+    public long getGenerated() {
+        return generated.sum();
+    }
+
+    /**
+     * @return the number of child states that were already in the closed set.
+     */
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    /**
+     * @param reason The reason for pruning.
+     * @return the number of pushes pruned for the given reason.
+     */
+    public long getPruned(Prune reason) {
+        return prunes[reason.ordinal()].sum();
+    }
+
+    /**
+     * @return the histogram of heuristic evaluation times.
+     */
+    public Histogram getHeuristicTime() {
+        return heuristicTime;
+    }
+
+    /**
+     * @return the histogram of sampled open list sizes.
+     */
+    public Histogram getOpenSize() {
+        return openSize;
+    }
+
+    /**
+     * @return a snapshot of all metrics as a single line of JSON.
+     */
+    public String toJson() {
+        StringBuilder buffer = new StringBuilder(512);
+        buffer.append("{\"time\": ").append(System.currentTimeMillis());
+        buffer.append(", \"expanded\": ").append(getExpanded());
+        buffer.append(", \"generated\": ").append(getGenerated());
+        buffer.append(", \"duplicates\": ").append(getDuplicates());
+        buffer.append(", \"pruned\": {");
+        for (Prune reason : Prune.values()) {
+            if (reason.ordinal() > 0)
+                buffer.append(", ");
+            buffer.append('"').append(reason.name().toLowerCase())
+                .append("\": ").append(getPruned(reason));
+        }
+        buffer.append("}, \"heuristic_nanos\": ");
+        heuristicTime.appendJson(buffer);
+        buffer.append(", \"open_size\": ");
+        openSize.appendJson(buffer);
+        buffer.append(", \"closed_set\": {\"lookups\": ")
+            .append(closedLookups.sum());
+        buffer.append(", \"probes\": ").append(closedProbes.sum());
+        buffer.append(", \"max_probe\": ").append(closedMaxProbe.get());
+        buffer.append(", \"load_percent\": ");
+        closedLoad.appendJson(buffer);
+        buffer.append('}');
+        buffer.append('}');
+        return buffer.toString();
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+}
@@ -0,0 +1,15 @@
+package Sokoban;
+
+/**
+ * A listener told about each improved solution of an anytime search.
+ */
+public interface SolutionListener {
+    /**
+     * Called for each solution with fewer pushes than the ones before it.
+     *
+     * @param endState The end state of the solution, linked to the start
+     * state.
+     * @param weight The weight of the heuristic when the solution was found.
+     */
+    void solutionFound(State endState, float weight);
+}
@@ -0,0 +1,168 @@
+package Sokoban;
+
+import java.util.List;
+import java.util.Collections;
+
+/**
+ * The result of solving a map. Holds the solution, if any was found, and
+ * statistics about the search.
+ */
+public class SolveResult {
+    /**
+     * The end state of the solution, or null if no solution was found.
+     */
+    private final State endState;
+
+    /**
+     * The player movements of the solution.
+     */
+    private final List<Direction> path;
+
+    /**
+     * The number of expanded nodes.
+     */
+    private final int expanded;
+
+    /**
+     * The number of inspected nodes.
+     */
+    private final int inspected;
+
+    /**
+     * The largest size of the open list.
+     */
+    private final int maxOpen;
+
+    /**
+     * The largest size of the closed set.
+     */
+    private final int maxClosed;
+
+    /**
+     * The time spent searching, in milliseconds.
+     */
+    private final long time;
+
+    /**
+     * Tells whether the search was cancelled before it finished.
+     */
+    private final boolean cancelled;
+
+    /**
+     * Tells whether the search stopped because it outgrew its memory budget.
+     */
+    private final boolean outOfBudget;
+
+    /**
+     * Create a new SolveResult.
+     *
+     * @param endState The end state of the solution, or null.
+     * @param expanded The number of expanded nodes.
+     * @param inspected The number of inspected nodes.
+     * @param maxOpen The largest size of the open list.
+     * @param maxClosed The largest size of the closed set.
+     * @param time The time spent searching.
+     * @param cancelled true iff the search was cancelled.
+     * @param outOfBudget true iff the search outgrew its memory budget.
+     */
+    public SolveResult(State endState, int expanded, int inspected,
+            int maxOpen, int maxClosed, long time, boolean cancelled,
+            boolean outOfBudget) {
+        this.endState = endState;
+        this.path = endState == null ? Collections.<Direction>emptyList() :
+            Collections.unmodifiableList(endState.directionPath());
+        this.expanded = expanded;
+        this.inspected = inspected;
+        this.maxOpen = maxOpen;
+        this.maxClosed = maxClosed;
+        this.time = time;
+        this.cancelled = cancelled;
+        this.outOfBudget = outOfBudget;
+    }
+
+    /**
+     * @return true iff a solution was found.
+     */
+    public boolean isSolved() {
+        return endState != null;
+    }
+
+    /**
+     * @return the end state of the solution, or null if not solved.
+     */
+    public State getEndState() {
+        return endState;
+    }
+
+    /**
+     * @return the player movements of the solution. The list is empty if no
+     * solution was found.
+     */
+    public List<Direction> getPath() {
+        return path;
+    }
+
+    /**
+     * @return the number of box pushes in the solution.
+     */
+    public int getNumPushes() {
+        return endState == null ? 0 : endState.getNumMoves();
+    }
+
+    /**
+     * @return the number of player moves in the solution.
+     */
+    public int getNumMoves() {
+        return path.size();
+    }
+
+    /**
+     * @return the number of expanded nodes.
+     */
+    public int getNumExpanded() {
+        return expanded;
+    }
+
+    /**
+     * @return the number of inspected nodes.
+     */
+    public int getNumInspected() {
+        return inspected;
+    }
+
+    /**
+     * @return the largest size of the open list.
+     */
+    public int getMaxOpen() {
+        return maxOpen;
+    }
+
+    /**
+     * @return the largest size of the closed set.
+     */
+    public int getMaxClosed() {
+        return maxClosed;
+    }
+
+    /**
+     * @return the time spent searching, in milliseconds.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return true iff the search was cancelled before it finished.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return true iff no solution was found because the node store of the
+     * search outgrew the memory budget, so spilling could not keep it within.
+     */
+    public boolean isOutOfBudget() {
+        return outOfBudget;
+    }
+}
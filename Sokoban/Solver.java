@@ -4,13 +4,10 @@ import java.io.InputStreamReader;
 import java.io.BufferedReader;
 import java.io.PrintWriter;
 import java.io.IOException;
+import java.io.File;
 import java.net.Socket;
-import java.util.Map.Entry;
-import java.util.Set;
 import java.util.List;
-import java.util.HashSet;
-import java.util.Queue;
-import java.util.PriorityQueue;
+import java.util.ArrayList;
 import java.util.Comparator;
 
 /**
@@ -72,14 +69,108 @@ public class Solver {
     State endState;
 
     /**
-     * Create a new Solver.
+     * The options used for searching.
+     */
+    SolverConfig config;
+
+    /**
+     * The token used for cancelling the search.
+     */
+    CancellationToken token;
+
+    /**
+     * The total number of inspected nodes.
+     */
+    int numInspected;
+
+    /**
+     * The largest size of the open list in any search.
+     */
+    int maxOpen;
+
+    /**
+     * The largest size of the closed set in any search.
+     */
+    int maxClosed;
+
+    /**
+     * Tells whether the last search stopped because it outgrew the memory
+     * budget.
+     */
+    boolean outOfBudget;
+
+    /**
+     * Create a new Solver. The options are taken from the static fields of
+     * this class.
      *
      * @param mapString A string representation of a map.
      */
     public Solver(String mapString) {
-        map = Map.parse(mapString);
+        this(Map.parse(mapString), new SolverConfig.Builder()
+                .timeLimit(searchLimit)
+                .interval(interval)
+                .printProgress(printProgress)
+                .build(), new CancellationToken());
+    }
+
+    /**
+     * Create a new Solver.
+     *
+     * @param map The map to solve.
+     * @param config The options to use.
+     * @param token The token used for cancelling the search.
+     */
+    public Solver(Map map, SolverConfig config, CancellationToken token) {
+        this.map = map;
+        this.config = config;
+        this.token = token;
         startState = new State(map.getStart(), map.getBoxes(), map);
         endState = null;
+        numInspected = 0;
+        maxOpen = 0;
+        maxClosed = 0;
+        outOfBudget = false;
+    }
+
+    /**
+     * Solve a map. Each call uses its own search, so several maps can be
+     * solved concurrently.
+     *
+     * @param map The map to solve.
+     * @param config The options to use.
+     * @return the result of the search.
+     */
+    public static SolveResult solve(Map map, SolverConfig config) {
+        return solve(map, config, new CancellationToken());
+    }
+
+    /**
+     * Solve a map. The search stops when a solution is found, when the time
+     * limit of the configuration is reached or when the token is cancelled.
+     *
+     * @param map The map to solve.
+     * @param config The options to use.
+     * @param token The token used for cancelling the search.
+     * @return the result of the search.
+     */
+    public static SolveResult solve(Map map, SolverConfig config,
+            CancellationToken token) {
+        Solver solver = new Solver(map, config, token);
+        long time = System.currentTimeMillis();
+        int expanded = solver.solve(config.getTimeLimit());
+
+        if (solver.endState != null && config.getOptimizeTime() > 0) {
+            Optimizer optimizer = new Optimizer(map,
+                    config.getOptimizeWindow(), config.getMoveOptimal(),
+                    token);
+            solver.endState = optimizer.optimize(solver.endState,
+                    config.getOptimizeTime());
+        }
+        time = System.currentTimeMillis() - time;
+        return new SolveResult(solver.getEndState(), expanded,
+                solver.numInspected, solver.maxOpen, solver.maxClosed, time,
+                solver.getEndState() == null && token.isCancelled(),
+                solver.getEndState() == null && solver.outOfBudget);
     }
 
     /**
@@ -103,11 +194,24 @@ public class Solver {
         return endState;
     }
 
-    private void printInfo(int expanded, int inspected, int visited,
-            int filled, long start) {
-        System.out.printf("expanded: %6d, inspected: %6d, queue: %6d, " +
-                "filled: %2d, time: %2.2f s\r", expanded, inspected, visited,
-                filled, (float)(System.currentTimeMillis()-start)/1000);
+    /**
+     * @param phase The phase of the default strategy, 0 or 1, or 2 for the
+     * third search of the scheduled strategy.
+     * @return the heuristic used in the given phase.
+     */
+    static Comparator<State> getHeuristic(int phase) {
+        Heuristics.MultipleHeuristic heuristic =
+            new Heuristics.MultipleHeuristic();
+        heuristic.add(new Heuristics.MinPackingPenalty());
+        if (phase == 0)
+            heuristic.add(new Heuristics.MinGoalDistance(), 3);
+        else if (phase == 1)
+            heuristic.add(new Heuristics.MaxScore(), 3);
+        else {
+            heuristic.add(new Heuristics.MaxNumDone(), 3);
+            heuristic.add(new Heuristics.MinGoalDistance(), 3);
+        }
+        return heuristic;
     }
 
     /**
@@ -118,59 +222,211 @@ public class Solver {
      * @return the number of expanded nodes.
      */
     public int search(Comparator<State> heuristic, int limit) {
-        int numExpanded = 0;
-        int numInspected = 0;
+        return search(new Search(map, heuristic, 0, config, token), limit);
+    }
+
+    /**
+     * Run a search and collect its statistics.
+     *
+     * @param search The search to run.
+     * @param limit The time limit.
+     * @return the number of expanded nodes.
+     */
+    private int search(Search search, int limit) {
+        int inspected = search.getNumInspected();
+        int num = search.run(limit);
+        search.close();
+
+        numInspected += search.getNumInspected() - inspected;
+        maxOpen = Math.max(maxOpen, search.getMaxOpen());
+        maxClosed = Math.max(maxClosed, search.getMaxClosed());
+        endState = search.getEndState();
+        outOfBudget = search.isOutOfBudget();
+        return num;
+    }
+
+    /**
+     * Search for a solution using the default heuristics. Most of the time is
+     * spent using the goal distance heuristic. If that fails, the rest of the
+     * time is spent using the goal score heuristic.
+     *
+     * If a checkpoint file is configured, the search of each phase is resumed
+     * from its checkpoint if there is one, so a hard map can be solved in
+     * several runs. The checkpoints are removed once a solution is found.
+     *
+     * If the map can be split into groups of boxes and goals that cannot
+     * influence each other, the groups are first solved on their own and the
+     * solutions merged. If that fails, the rest of the time is spent on the
+     * whole map.
+     *
+     * With the bidirectional strategy, all of the time is spent in a
+     * BidirectionalSearch instead, and with the anytime strategy in an
+     * AnytimeSearch, which keeps improving its solution until the time is up.
+     * With the scheduled strategy, the time is shared out between searches
+     * with different heuristics by a Scheduler, and with the ida strategy it
+     * is spent in a parallel IdaSearch.
+     *
+     * @param limit The total time limit.
+     * @return the number of expanded nodes.
+     */
+    public int solve(int limit) {
+        int num = 0;
+        if (config.getDecompose()) {
+            long time = System.currentTimeMillis();
+            num = solveDecomposed(time + limit);
+            if (endState != null || token.isCancelled())
+                return num;
+            limit -= System.currentTimeMillis() - time;
+            if (limit <= 0)
+                return num;
+        }
 
-        Queue<State> queue = new PriorityQueue<State>(1000, heuristic);
-        Set<State> visited = new HashSet<State>();
+        if (config.getStrategy() == SolverConfig.Strategy.BIDIRECTIONAL)
+            return num + searchBidirectional(limit);
+        if (config.getStrategy() == SolverConfig.Strategy.ANYTIME)
+            return num + searchAnytime(limit);
+        if (config.getStrategy() == SolverConfig.Strategy.SCHEDULED)
+            return num + searchScheduled(limit);
+        if (config.getStrategy() == SolverConfig.Strategy.IDA)
+            return num + searchIda(limit);
+
+        num += search(newSearch(0), (int)(3.0/4 * limit));
+
+        if (endState == null && !token.isCancelled())
+            num += search(newSearch(1), (int)(1.0/4 * limit));
+
+        if (endState != null)
+            for (int phase = 0; phase < 2; phase++) {
+                File file = Search.getCheckpointFile(config, phase);
+                if (file != null)
+                    file.delete();
+            }
+        return num;
+    }
 
-        queue.add(startState);
-        visited.add(startState);
+    /**
+     * Solve the independent groups of the map on their own, if there are
+     * several.
+     *
+     * @param deadline The time at which all groups must be done, as given by
+     * System.currentTimeMillis().
+     * @return the number of expanded nodes.
+     */
+    private int solveDecomposed(long deadline) {
+        Decomposition decomposition = new Decomposition(map);
+        if (decomposition.getNumGroups() < 2)
+            return 0;
+
+        endState = decomposition.solve(config, token.withDeadline(deadline));
+        numInspected += decomposition.getNumInspected();
+        maxOpen = Math.max(maxOpen, decomposition.getMaxOpen());
+        maxClosed = Math.max(maxClosed, decomposition.getMaxClosed());
+        return decomposition.getNumExpanded();
+    }
 
-        int i = 0;
-        long start = System.currentTimeMillis();
+    /**
+     * Search for a solution from both the start state and the goal states.
+     *
+     * @param limit The time limit.
+     * @return the number of expanded nodes.
+     */
+    private int searchBidirectional(int limit) {
+        BidirectionalSearch search = new BidirectionalSearch(map, config,
+                token);
+        int num = search.run(limit);
+        search.close();
+
+        numInspected += search.getNumInspected();
+        maxOpen = Math.max(maxOpen, search.getMaxOpen());
+        maxClosed = Math.max(maxClosed, search.getMaxClosed());
+        endState = search.getEndState();
+        outOfBudget = search.isOutOfBudget();
+        return num;
+    }
 
-        while (!queue.isEmpty()) {
-            State curState = queue.poll();
+    /**
+     * Search for a solution with decreasing weights, keeping the best one.
+     *
+     * @param limit The time limit.
+     * @return the number of expanded nodes.
+     */
+    private int searchAnytime(int limit) {
+        AnytimeSearch search = new AnytimeSearch(map, config, token);
+        int num = search.run(limit);
+
+        numInspected += search.getNumInspected();
+        maxOpen = Math.max(maxOpen, search.getMaxOpen());
+        maxClosed = Math.max(maxClosed, search.getMaxClosed());
+        endState = search.getEndState();
+        return num;
+    }
 
-            if (numExpanded == 1 || i == interval) {
-                if (printProgress) {
-                    printInfo(numExpanded, numInspected, queue.size(),
-                            curState.getNumBoxesInGoal(), start);
-                }
+    /**
+     * Search for a solution by iterative deepening, in parallel.
+     *
+     * @param limit The time limit.
+     * @return the number of expanded nodes.
+     */
+    private int searchIda(int limit) {
+        IdaSearch search = new IdaSearch(map, config, token);
+        int num = search.run(limit);
+
+        numInspected += search.getNumInspected();
+        maxOpen = Math.max(maxOpen, search.getMaxOpen());
+        maxClosed = Math.max(maxClosed, search.getMaxClosed());
+        endState = search.getEndState();
+        return num;
+    }
 
-                if (System.currentTimeMillis()-start >= limit)
-                    break;
-                i = 0;
-            }
-            i++;
-            numExpanded++;
-
-            for (Entry<Direction, Point> move : curState.getAvailableMoves()) {
-                State nextState = State.getStateAfterMove(curState, move);
-                numInspected++;
-
-                if (!visited.contains(nextState)) {
-                    if (nextState.isGoalReached()) {
-                        endState = nextState;
-                        if (printProgress) {
-                            printInfo(numExpanded, numInspected, queue.size(),
-                                    endState.getNumBoxesInGoal(), start);
-                            System.out.println();
-                        }
-                        return numExpanded;
-                    }
-                    queue.add(nextState);
-                    visited.add(nextState);
-                }
-            }
-        }
+    /**
+     * Search for a solution with the heuristics of all phases at once, in
+     * time slices given to the searches that make the most progress. The
+     * searches share the memory budget and are not checkpointed.
+     *
+     * @param limit The time limit.
+     * @return the number of expanded nodes.
+     */
+    private int searchScheduled(int limit) {
+        SolverConfig searchConfig = config.toBuilder()
+            .printProgress(false)
+            .memoryBudget(config.getMemoryBudget() / 3)
+            .checkpointFile(null)
+            .build();
+        List<Search> searches = new ArrayList<Search>();
+        for (int phase = 0; phase < 3; phase++)
+            searches.add(new Search(map, getHeuristic(phase), phase,
+                        searchConfig, token));
+
+        Scheduler scheduler = new Scheduler(searches, config, token);
+        int num = scheduler.run(limit);
+        scheduler.close();
+
+        numInspected += scheduler.getNumInspected();
+        maxOpen = Math.max(maxOpen, scheduler.getMaxOpen());
+        maxClosed = Math.max(maxClosed, scheduler.getMaxClosed());
+        endState = scheduler.getEndState();
+        outOfBudget = scheduler.isOutOfBudget();
+        return num;
+    }
 
-        if (printProgress) {
-            printInfo(numExpanded, numInspected, queue.size(), 0, start);
-            System.out.println();
+    /**
+     * Create the search of a phase, resuming it from its checkpoint if there
+     * is one.
+     *
+     * @param phase The phase of the search.
+     * @return the search.
+     */
+    private Search newSearch(int phase) {
+        File file = Search.getCheckpointFile(config, phase);
+        if (file != null && file.exists()) {
+            try {
+                return Search.resume(file, map, config, token);
+            } catch (IOException e) {
+                System.err.println("Ignoring checkpoint " + file + ": " +
+                        e.getMessage());
+            }
         }
-        return numExpanded;
+        return new Search(map, getHeuristic(phase), phase, config, token);
     }
 
     /**
@@ -241,26 +497,21 @@ public class Solver {
         if (printPuzzle)
             System.out.println(solver.getStartState());
 
-        Heuristics.MultipleHeuristic heuristic =
-            new Heuristics.MultipleHeuristic();
-
-        heuristic.add(new Heuristics.MinGoalDistance(), 3);
-
         long time = System.currentTimeMillis();
-        long num = solver.search(heuristic, (int)(3.0/4 * searchLimit));
+        long num = solver.solve(searchLimit);
         time = System.currentTimeMillis() - time;
 
-        if (solver.getEndState() == null) {
-            heuristic = new Heuristics.MultipleHeuristic();
-            heuristic.add(new Heuristics.MaxScore(), 3);
-            time = System.currentTimeMillis();
-            num += solver.search(heuristic, (int)(1.0/4 * searchLimit));
-            time = System.currentTimeMillis() - time;
-        }
-
         boolean success = false;
+        Verifier.Result verified = null;
 
         if (solver.getEndState() != null) {
+            verified = new Verifier(solver.getMap()).verify(
+                    solver.getEndState().directionPath());
+            if (!verified.isSolution())
+                System.err.println("Local verification failed: " + verified);
+        }
+
+        if (verified != null && verified.isSolution()) {
             if (useServer) {
                 for (Direction d : solver.getEndState().directionPath())
                     out.print(d);
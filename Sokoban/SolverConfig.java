@@ -0,0 +1,601 @@
+package Sokoban;
+
+/**
+ * An immutable set of options for a Solver. Instances are created through a
+ * Builder:
+ *
+ * SolverConfig config = new SolverConfig.Builder().timeLimit(10000).build();
+ */
+public class SolverConfig {
+    /**
+     * The available search strategies.
+     */
+    public enum Strategy {
+        DEFAULT, BIDIRECTIONAL, ANYTIME, SCHEDULED, IDA;
+    };
+
+    /**
+     * The time limit for a search, in milliseconds.
+     */
+    private final int timeLimit;
+
+    /**
+     * The number of expansions between checks of time and progress prints.
+     */
+    private final int interval;
+
+    /**
+     * Tells whether a progress meter should be displayed.
+     */
+    private final boolean printProgress;
+
+    /**
+     * The time budget for optimizing a found solution, in milliseconds. No
+     * optimization is done if it is 0.
+     */
+    private final int optimizeTime;
+
+    /**
+     * The maximum number of pushes covered by each local search of the
+     * optimizer.
+     */
+    private final int optimizeWindow;
+
+    /**
+     * Tells whether the optimizer should run its move optimal refinement.
+     */
+    private final boolean moveOptimal;
+
+    /**
+     * The metrics collected during search, or null if no metrics should be
+     * collected.
+     */
+    private final SearchMetrics metrics;
+
+    /**
+     * The time between JSON snapshots of the metrics written to stderr, in
+     * milliseconds. No snapshots are written if it is 0.
+     */
+    private final int metricsPeriod;
+
+    /**
+     * The recorder of the search trace, or null if no trace should be
+     * recorded.
+     */
+    private final TraceRecorder trace;
+
+    /**
+     * The number of nodes the node store and the closed set of each search are
+     * sized for initially. Both grow as needed, so the default is small enough
+     * for tiny levels, and searches expected to be large can be pre-sized to
+     * avoid growing.
+     */
+    private final int initialCapacity;
+
+    /**
+     * The memory budget of a search in bytes. When the estimated memory used
+     * by the node store and the open list exceeds it, part of the open list is
+     * spilled to disk. There is no budget if it is 0.
+     */
+    private final long memoryBudget;
+
+    /**
+     * The directory the open list is spilled to, or null for the default
+     * temporary directory.
+     */
+    private final String spillDirectory;
+
+    /**
+     * The file searches are checkpointed to, or null if no checkpoints should
+     * be written.
+     */
+    private final String checkpointFile;
+
+    /**
+     * The time between checkpoints of a search, in milliseconds. Checkpoints
+     * are only written when a search stops if it is 0.
+     */
+    private final int checkpointPeriod;
+
+    /**
+     * The search strategy used by the solver.
+     */
+    private final Strategy strategy;
+
+    /**
+     * The listener told about each improved solution of an anytime search, or
+     * null.
+     */
+    private final SolutionListener solutionListener;
+
+    /**
+     * Tells whether the search should push boxes through tunnels and into goal
+     * rooms as single macro moves.
+     */
+    private final boolean macroMoves;
+
+    /**
+     * Tells whether pushes breaking the packing order of a goal room should be
+     * pruned. Only used with macro moves, which move boxes into goal rooms
+     * without passing over other goals.
+     */
+    private final boolean packingPrune;
+
+    /**
+     * Tells whether a map should be split into groups of boxes and goals that
+     * cannot influence each other, each solved on its own.
+     */
+    private final boolean decompose;
+
+    /**
+     * The number of best states a search expands at once. With more than one,
+     * the children of a batch are generated and evaluated in parallel.
+     */
+    private final int batchSize;
+
+    /**
+     * Create a new SolverConfig from a builder.
+     *
+     * @param builder The builder holding the options.
+     */
+    private SolverConfig(Builder builder) {
+        this.timeLimit = builder.timeLimit;
+        this.interval = builder.interval;
+        this.printProgress = builder.printProgress;
+        this.optimizeTime = builder.optimizeTime;
+        this.optimizeWindow = builder.optimizeWindow;
+        this.moveOptimal = builder.moveOptimal;
+        this.metrics = builder.metrics;
+        this.metricsPeriod = builder.metricsPeriod;
+        this.trace = builder.trace;
+        this.initialCapacity = builder.initialCapacity;
+        this.memoryBudget = builder.memoryBudget;
+        this.spillDirectory = builder.spillDirectory;
+        this.checkpointFile = builder.checkpointFile;
+        this.checkpointPeriod = builder.checkpointPeriod;
+        this.strategy = builder.strategy;
+        this.solutionListener = builder.solutionListener;
+        this.macroMoves = builder.macroMoves;
+        this.packingPrune = builder.packingPrune;
+        this.decompose = builder.decompose;
+        this.batchSize = builder.batchSize;
+    }
+
+    /**
+     * @return a configuration with all options set to their defaults.
+     */
+    public static SolverConfig defaults() {
+        return new Builder().build();
+    }
+
+    /**
+     * @return the time limit for a search.
+     */
+    public int getTimeLimit() {
+        return timeLimit;
+    }
+
+    /**
+     * @return the number of expansions between checks of time.
+     */
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * @return true iff a progress meter should be displayed.
+     */
+    public boolean getPrintProgress() {
+        return printProgress;
+    }
+
+    /**
+     * @return the time budget for optimizing a found solution.
+     */
+    public int getOptimizeTime() {
+        return optimizeTime;
+    }
+
+    /**
+     * @return the number of pushes covered by each local search of the
+     * optimizer.
+     */
+    public int getOptimizeWindow() {
+        return optimizeWindow;
+    }
+
+    /**
+     * @return true iff the optimizer should run its move optimal refinement.
+     */
+    public boolean getMoveOptimal() {
+        return moveOptimal;
+    }
+
+    /**
+     * @return the metrics collected during search, or null.
+     */
+    public SearchMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the time between JSON snapshots of the metrics.
+     */
+    public int getMetricsPeriod() {
+        return metricsPeriod;
+    }
+
+    /**
+     * @return the recorder of the search trace, or null.
+     */
+    public TraceRecorder getTrace() {
+        return trace;
+    }
+
+    /**
+     * @return the number of nodes each search is sized for initially.
+     */
+    public int getInitialCapacity() {
+        return initialCapacity;
+    }
+
+    /**
+     * @return the memory budget of a search in bytes, or 0.
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @return the directory the open list is spilled to, or null.
+     */
+    public String getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * @return the file searches are checkpointed to, or null.
+     */
+    public String getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    /**
+     * @return the time between checkpoints of a search.
+     */
+    public int getCheckpointPeriod() {
+        return checkpointPeriod;
+    }
+
+    /**
+     * @return the search strategy used by the solver.
+     */
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * @return the listener told about each improved solution, or null.
+     */
+    public SolutionListener getSolutionListener() {
+        return solutionListener;
+    }
+
+    /**
+     * @return true iff the search uses tunnel and goal room macro moves.
+     */
+    public boolean getMacroMoves() {
+        return macroMoves;
+    }
+
+    /**
+     * @return true iff pushes breaking the packing order of a goal room are
+     * pruned.
+     */
+    public boolean getPackingPrune() {
+        return packingPrune;
+    }
+
+    /**
+     * @return true iff maps are split into independent groups before
+     * searching.
+     */
+    public boolean getDecompose() {
+        return decompose;
+    }
+
+    /**
+     * @return the number of best states a search expands at once.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @return a builder initialized with the options of this configuration.
+     */
+    public Builder toBuilder() {
+        return new Builder()
+            .timeLimit(timeLimit)
+            .interval(interval)
+            .printProgress(printProgress)
+            .optimizeTime(optimizeTime)
+            .optimizeWindow(optimizeWindow)
+            .moveOptimal(moveOptimal)
+            .metrics(metrics)
+            .metricsPeriod(metricsPeriod)
+            .trace(trace)
+            .initialCapacity(initialCapacity)
+            .memoryBudget(memoryBudget)
+            .spillDirectory(spillDirectory)
+            .checkpointFile(checkpointFile)
+            .checkpointPeriod(checkpointPeriod)
+            .strategy(strategy)
+            .solutionListener(solutionListener)
+            .macroMoves(macroMoves)
+            .packingPrune(packingPrune)
+            .decompose(decompose)
+            .batchSize(batchSize);
+    }
+
+    /**
+     * A builder for SolverConfig objects.
+     */
+    public static class Builder {
+        private int timeLimit = 60000;
+        private int interval = 200;
+        private boolean printProgress = false;
+        private int optimizeTime = 0;
+        private int optimizeWindow = 4;
+        private boolean moveOptimal = false;
+        private SearchMetrics metrics = null;
+        private int metricsPeriod = 0;
+        private TraceRecorder trace = null;
+        private int initialCapacity = 1 << 10;
+        private long memoryBudget = 0;
+        private String spillDirectory = null;
+        private String checkpointFile = null;
+        private int checkpointPeriod = 0;
+        private Strategy strategy = Strategy.DEFAULT;
+        private SolutionListener solutionListener = null;
+        private boolean macroMoves = true;
+        private boolean packingPrune = true;
+        private boolean decompose = true;
+        private int batchSize = 1;
+
+        /**
+         * @param timeLimit The time limit for a search, in milliseconds.
+         * @return this builder.
+         */
+        public Builder timeLimit(int timeLimit) {
+            if (timeLimit <= 0)
+                throw new IllegalArgumentException("timeLimit must be positive");
+            this.timeLimit = timeLimit;
+            return this;
+        }
+
+        /**
+         * @param interval The number of expansions between checks of time.
+         * @return this builder.
+         */
+        public Builder interval(int interval) {
+            if (interval <= 0)
+                throw new IllegalArgumentException("interval must be positive");
+            this.interval = interval;
+            return this;
+        }
+
+        /**
+         * @param printProgress true iff a progress meter should be displayed.
+         * @return this builder.
+         */
+        public Builder printProgress(boolean printProgress) {
+            this.printProgress = printProgress;
+            return this;
+        }
+
+        /**
+         * @param optimizeTime The time budget for optimizing a found solution,
+         * or 0 for no optimization.
+         * @return this builder.
+         */
+        public Builder optimizeTime(int optimizeTime) {
+            if (optimizeTime < 0)
+                throw new IllegalArgumentException(
+                        "optimizeTime must not be negative");
+            this.optimizeTime = optimizeTime;
+            return this;
+        }
+
+        /**
+         * @param optimizeWindow The number of pushes covered by each local
+         * search of the optimizer.
+         * @return this builder.
+         */
+        public Builder optimizeWindow(int optimizeWindow) {
+            if (optimizeWindow <= 0)
+                throw new IllegalArgumentException(
+                        "optimizeWindow must be positive");
+            this.optimizeWindow = optimizeWindow;
+            return this;
+        }
+
+        /**
+         * @param moveOptimal true iff the optimizer should run its move
+         * optimal refinement.
+         * @return this builder.
+         */
+        public Builder moveOptimal(boolean moveOptimal) {
+            this.moveOptimal = moveOptimal;
+            return this;
+        }
+
+        /**
+         * @param metrics The metrics to collect during search, or null. The
+         * same metrics may be shared by several searches. They are only
+         * recorded by the default and scheduled strategies.
+         * @return this builder.
+         */
+        public Builder metrics(SearchMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * @param metricsPeriod The time between JSON snapshots of the metrics
+         * written to stderr by BatchSolver, or 0 for no snapshots.
+         * @return this builder.
+         */
+        public Builder metricsPeriod(int metricsPeriod) {
+            if (metricsPeriod < 0)
+                throw new IllegalArgumentException(
+                        "metricsPeriod must not be negative");
+            this.metricsPeriod = metricsPeriod;
+            return this;
+        }
+
+        /**
+         * @param trace The recorder of the search trace, or null. A recorder
+         * can only be used by one search.
+         * @return this builder.
+         */
+        public Builder trace(TraceRecorder trace) {
+            this.trace = trace;
+            return this;
+        }
+
+        /**
+         * @param initialCapacity The number of nodes each search is sized for
+         * initially.
+         * @return this builder.
+         */
+        public Builder initialCapacity(int initialCapacity) {
+            if (initialCapacity <= 0)
+                throw new IllegalArgumentException(
+                        "initialCapacity must be positive");
+            this.initialCapacity = initialCapacity;
+            return this;
+        }
+
+        /**
+         * @param memoryBudget The memory budget of a search in bytes, or 0 for
+         * no budget.
+         * @return this builder.
+         */
+        public Builder memoryBudget(long memoryBudget) {
+            if (memoryBudget < 0)
+                throw new IllegalArgumentException(
+                        "memoryBudget must not be negative");
+            this.memoryBudget = memoryBudget;
+            return this;
+        }
+
+        /**
+         * @param spillDirectory The directory the open list is spilled to, or
+         * null for the default temporary directory.
+         * @return this builder.
+         */
+        public Builder spillDirectory(String spillDirectory) {
+            this.spillDirectory = spillDirectory;
+            return this;
+        }
+
+        /**
+         * @param checkpointFile The file searches are checkpointed to, or null
+         * for no checkpoints. A checkpoint is also written when a search stops
+         * without a solution, and searches are resumed from their checkpoints
+         * if they exist.
+         * @return this builder.
+         */
+        public Builder checkpointFile(String checkpointFile) {
+            this.checkpointFile = checkpointFile;
+            return this;
+        }
+
+        /**
+         * @param checkpointPeriod The time between checkpoints of a search in
+         * milliseconds, or 0 to only write a checkpoint when a search stops.
+         * @return this builder.
+         */
+        public Builder checkpointPeriod(int checkpointPeriod) {
+            if (checkpointPeriod < 0)
+                throw new IllegalArgumentException(
+                        "checkpointPeriod must not be negative");
+            this.checkpointPeriod = checkpointPeriod;
+            return this;
+        }
+
+        /**
+         * @param strategy The search strategy used by the solver.
+         * @return this builder.
+         */
+        public Builder strategy(Strategy strategy) {
+            if (strategy == null)
+                throw new IllegalArgumentException(
+                        "strategy must not be null");
+            this.strategy = strategy;
+            return this;
+        }
+
+        /**
+         * @param solutionListener The listener told about each improved
+         * solution of an anytime search, or null.
+         * @return this builder.
+         */
+        public Builder solutionListener(SolutionListener solutionListener) {
+            this.solutionListener = solutionListener;
+            return this;
+        }
+
+        /**
+         * @param macroMoves true iff the search should use tunnel and goal
+         * room macro moves.
+         * @return this builder.
+         */
+        public Builder macroMoves(boolean macroMoves) {
+            this.macroMoves = macroMoves;
+            return this;
+        }
+
+        /**
+         * @param packingPrune true iff pushes breaking the packing order of a
+         * goal room should be pruned.
+         * @return this builder.
+         */
+        public Builder packingPrune(boolean packingPrune) {
+            this.packingPrune = packingPrune;
+            return this;
+        }
+
+        /**
+         * @param decompose true iff maps should be split into independent
+         * groups before searching.
+         * @return this builder.
+         */
+        public Builder decompose(boolean decompose) {
+            this.decompose = decompose;
+            return this;
+        }
+
+        /**
+         * @param batchSize The number of best states expanded at once, at
+         * least 1. With more than one, the children are generated in parallel
+         * and then added in a fixed order, so the search stays deterministic.
+         * @return this builder.
+         */
+        public Builder batchSize(int batchSize) {
+            if (batchSize < 1)
+                throw new IllegalArgumentException(
+                        "batch size must be positive");
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * @return a new configuration holding the options of this builder.
+         */
+        public SolverConfig build() {
+            return new SolverConfig(this);
+        }
+    }
+}
@@ -3,10 +3,8 @@ package Sokoban;
 import java.util.Arrays;
 import java.util.Set;
 import java.util.List;
-import java.util.Queue;
-import java.util.HashSet;
-import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.Map.Entry;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.Collection;
@@ -31,6 +29,17 @@ public class State {
      */
     private State previous;
 
+    /**
+     * The number of box moves from the start state to this state.
+     */
+    private int depth;
+
+    /**
+     * The id of the node of this state in a NodeStore, or -1 if the state is
+     * not stored.
+     */
+    private int node;
+
     /**
      * The point where the player starts in this state.
      */
@@ -41,6 +50,34 @@ public class State {
      */
     private Point min;
 
+    /**
+     * The cells of the boxes in this state, as a bitset indexed by
+     * Map.getIndex(), or null if not built yet.
+     */
+    private long[] occupied;
+
+    /**
+     * The cells reachable by the player in this state, as a bitset indexed by
+     * Map.getIndex(), or null if not found yet.
+     */
+    private long[] region;
+
+    /**
+     * The region of the state this state was derived from by a single push,
+     * or null. It is only used for deriving the region of this state.
+     */
+    private long[] parentRegion;
+
+    /**
+     * The minimum reachable point of the state this state was derived from.
+     */
+    private Point parentMin;
+
+    /**
+     * The cell the box was pushed to when this state was derived.
+     */
+    private Point pushed;
+
     /**
      * Used for remembering old result of getGoalDistance() since that method
      * is quite expensive.
@@ -52,6 +89,11 @@ public class State {
      */
     private float score;
 
+    /**
+     * For holding the result of getPackingPenalty(), or -1.
+     */
+    private int packingPenalty;
+
     /**
      * Create a new State.
      *
@@ -89,14 +131,30 @@ public class State {
         this.min = null;
         this.boxes = boxes;
         this.previous = previous;
+        this.depth = previous == null ? 0 : previous.depth + 1;
+        this.node = -1;
         this.start = start;
         this.goalDistance = -1;
         this.score = 1000;
+        this.packingPenalty = -1;
 
         if (!isSorted)
             Arrays.sort(this.boxes);
     }
 
+    /**
+     * Create a new State that is not linked to the states before it.
+     *
+     * @param start The start position in this state.
+     * @param boxes The sorted array of boxes in the map.
+     * @param map The map this state is derived from.
+     * @param depth The number of box moves from the start state.
+     */
+    State(Point start, Point[] boxes, Map map, int depth) {
+        this(start, boxes, map, null, true);
+        this.depth = depth;
+    }
+
     @Override
     public int hashCode() {
         int hash = 0;
@@ -107,34 +165,158 @@ public class State {
     }
 
     /**
-     * Getter for the reachable positions in this state. Lazy evaluation is
-     * used.
+     * Check if the player can reach a point in this state.
      *
-     * @return the set of reachable positions in this state.
+     * @param p The point to examine.
+     * @return true iff the player can walk to the given point.
+     */
+    boolean isReachable(Point p) {
+        int cell = map.getIndex(p);
+        return (getRegion()[cell >>> 6] & (1L << cell)) != 0;
+    }
+
+    /**
+     * Getter for the region of the player in this state. Lazy evaluation is
+     * used, and the region of a state derived by a single push is derived
+     * from the region of its parent when possible.
+     *
+     * @return the cells reachable by the player as a bitset indexed by
+     * Map.getIndex().
+     */
+    private long[] getRegion() {
+        if (region == null) {
+            if (parentRegion != null)
+                region = deriveRegion();
+            if (region == null)
+                region = findRegion();
+            parentRegion = null;
+            parentMin = null;
+            pushed = null;
+        }
+        return region;
+    }
+
+    /**
+     * Find the region of the player by a flood fill from the player.
+     *
+     * @return the cells reachable by the player.
+     */
+    private long[] findRegion() {
+        long[] region = new long[(map.getNumCells() + 63) >>> 6];
+        int cell = map.getIndex(start);
+        region[cell >>> 6] |= 1L << cell;
+        min = map.getPoint(fill(region, cell, cell));
+        return region;
+    }
+
+    /**
+     * Derive the region of the player from the region of the parent. The
+     * cell the box is pushed to leaves the region, which is only safe if the
+     * free cells around it stay connected without it, and the cell the box
+     * left is added together with any region it joins. Only the added cells
+     * are walked, so a push that joins no regions costs almost nothing.
+     *
+     * @return the cells reachable by the player, or null if the push may
+     * have split the region of the parent.
+     */
+    private long[] deriveRegion() {
+        int box = map.getIndex(pushed);
+        int minCell = map.getIndex(parentMin);
+        long[] region = parentRegion.clone();
+        if ((region[box >>> 6] & (1L << box)) != 0) {
+            if (!isLocallyConnected(pushed))
+                return null;
+            region[box >>> 6] &= ~(1L << box);
+            if (box == minCell)
+                minCell = getFirstCell(region);
+        }
+
+        int cell = map.getIndex(start);
+        region[cell >>> 6] |= 1L << cell;
+        min = map.getPoint(fill(region, cell, Math.min(minCell, cell)));
+        return region;
+    }
+
+    /**
+     * @param region A region.
+     * @return the minimum cell of the region, or Integer.MAX_VALUE if it is
+     * empty.
      */
-    private Collection<Point> getReachablePositions() {
-        Queue<Point> queue = new LinkedList<Point>();
-        Collection<Point> reachablePositions = new HashSet<Point>();
+    private static int getFirstCell(long[] region) {
+        for (int i = 0; i < region.length; i++)
+            if (region[i] != 0)
+                return (i << 6) + Long.numberOfTrailingZeros(region[i]);
+        return Integer.MAX_VALUE;
+    }
 
-        queue.add(start);
-        reachablePositions.add(start);
+    /**
+     * Add the free cells connected to a cell to a region, walking only over
+     * cells not in the region yet.
+     *
+     * @param region The region, which holds the cell.
+     * @param cell The cell to start from.
+     * @param minCell The minimum cell of the region so far.
+     * @return the minimum cell of the region.
+     */
+    private int fill(long[] region, int cell, int minCell) {
+        BfsWorkspace workspace = BfsWorkspace.get(map.getNumCells());
+        workspace.add(cell);
 
-        while (!queue.isEmpty()) {
-            Point current = queue.poll();
+        while (!workspace.isEmpty()) {
+            int current = workspace.poll();
             for (Direction d : Direction.getArray()) {
-                Point p = map.getPoint(current.x + d.dx, current.y + d.dy);
-                if (!map.isWall(p) && !hasBox(p) &&
-                        !reachablePositions.contains(p)) {
-                    queue.add(p);
-                    reachablePositions.add(p);
+                int next = current + map.getOffset(d);
+                if ((region[next >>> 6] & (1L << next)) != 0)
+                    continue;
+                Point p = map.getPoint(next);
+                if (!map.isWall(p) && !hasBox(p)) {
+                    region[next >>> 6] |= 1L << next;
+                    workspace.add(next);
+                    if (next < minCell)
+                        minCell = next;
                 }
             }
         }
+        return minCell;
+    }
 
-        if (min == null)
-            min = getMinPosition(reachablePositions);
-
-        return reachablePositions;
+    /**
+     * Check if the free neighbours of a cell are connected around it, i.e.
+     * if they all lie on one run of free cells of the ring of eight cells
+     * around it. If so, occupying the cell cannot split the region it lies
+     * in.
+     *
+     * @param p The cell.
+     * @return true iff the free neighbours of the cell are connected without
+     * it.
+     */
+    private boolean isLocallyConnected(Point p) {
+        int[] dx = {0, 1, 1, 1, 0, -1, -1, -1};
+        int[] dy = {-1, -1, 0, 1, 1, 1, 0, -1};
+        boolean[] free = new boolean[8];
+        int last = -1;
+        for (int i = 0; i < 8; i++) {
+            Point q = map.getPoint(p.x + dx[i], p.y + dy[i]);
+            free[i] = !map.isWall(q) && !hasBox(q);
+            if (!free[i])
+                last = i;
+        }
+        if (last == -1)
+            return true;
+
+        /* Count the runs holding a neighbour, starting after a blocked cell. */
+        int runs = 0;
+        boolean counted = false;
+        for (int j = 1; j <= 8; j++) {
+            int i = (last + j) % 8;
+            if (!free[i])
+                counted = false;
+            else if (i % 2 == 0 && !counted) {
+                runs++;
+                counted = true;
+            }
+        }
+        return runs <= 1;
     }
 
     /**
@@ -142,23 +324,24 @@ public class State {
      *
      * @return the minimum position reachable by the player in this state.
      */
-    private Point getMinPosition() {
+    Point getMinPosition() {
         if (min == null)
-            min = getMinPosition(getReachablePositions());
+            getRegion();
         return min;
     }
 
     /**
-     * Find the minimum position in a set of reachable positions.
+     * Let this state derive its region from the state it was pushed from.
      *
-     * @return the minimum position reachable in the given set.
+     * @param from The state before the push.
+     * @param box The cell the box was pushed to.
      */
-    private Point getMinPosition(Collection<Point> reachablePositions) {
-        Point min = null;
-        for (Point point : reachablePositions)
-            if (min == null || point.compareTo(min) < 0)
-                min = point;
-        return min;
+    private void setParent(State from, Point box) {
+        if (from.region == null)
+            return;
+        parentRegion = from.region;
+        parentMin = from.min;
+        pushed = box;
     }
 
     /**
@@ -177,7 +360,43 @@ public class State {
      * measured in number of box moves here.
      */
     public int getNumMoves() {
-        return previous == null ? 0 : previous.getNumMoves() + 1;
+        return depth;
+    }
+
+    /**
+     * @return the map this state is derived from.
+     */
+    Map getMap() {
+        return map;
+    }
+
+    /**
+     * @return the position of the player in this state.
+     */
+    Point getPlayer() {
+        return start;
+    }
+
+    /**
+     * @return the state this state is derived from, or null if this is the
+     * start state.
+     */
+    State getPrevious() {
+        return previous;
+    }
+
+    /**
+     * @return the id of the node of this state in a NodeStore, or -1.
+     */
+    int getNode() {
+        return node;
+    }
+
+    /**
+     * @param node The id of the node of this state in a NodeStore.
+     */
+    void setNode(int node) {
+        this.node = node;
     }
 
     /**
@@ -186,20 +405,39 @@ public class State {
      * @return the list of box moves that are available.
      */
     public List<Entry<Direction, Point>> getAvailableMoves() {
+        return getAvailableMoves((PruneListener)null);
+    }
+
+    /**
+     * Calculate the available box moves that can be done from this state, and
+     * count the pruned moves by reason.
+     *
+     * @param listener The listener to tell about pruned moves, or null.
+     * @return the list of box moves that are available.
+     */
+    public List<Entry<Direction, Point>> getAvailableMoves(
+            PruneListener listener) {
         List<Entry<Direction, Point>> moves =
             new LinkedList<Entry<Direction, Point>>();
 
-        Collection<Point> reachable = getReachablePositions();
-
         for (Point box : boxes)
             for (Direction d : Direction.getArray()) {
                 Point p = map.getPoint(box.x - d.dx, box.y - d.dy);
-                if (reachable.contains(p)) {
+                if (isReachable(p)) {
                     p = map.getPoint(p.x + 2*d.dx, p.y + 2*d.dy);
-                    if (!map.isWall(p) && !map.isForbidden(p) &&
-                            !hasBox(p) && !wouldLock(box, d) &&
-                            wouldBeConsistent(box, d))
+                    SearchMetrics.Prune reason = null;
+                    if (map.isWall(p) || hasBox(p))
+                        reason = SearchMetrics.Prune.BLOCKED;
+                    else if (map.isForbidden(p))
+                        reason = SearchMetrics.Prune.FORBIDDEN;
+                    else if ((reason = lockReason(box, d)) == null &&
+                            !wouldBeConsistent(box, d))
+                        reason = SearchMetrics.Prune.INCONSISTENT;
+
+                    if (reason == null)
                         moves.add(new SimpleEntry<Direction, Point>(d, box));
+                    else if (listener != null)
+                        listener.pruned(reason);
                 }
             }
         return moves;
@@ -219,10 +457,41 @@ public class State {
      * @return true iff there is a box on the given Point.
      */
     public boolean hasBox(Point pos) {
-        for (int i = 0; i < boxes.length; i++)
-            if (boxes[i] == pos)
-                return true;
-        return false;
+        int cell = map.getIndex(pos);
+        return (getOccupied()[cell >>> 6] & (1L << cell)) != 0;
+    }
+
+    /**
+     * Getter for the cells of the boxes. Lazy evaluation is used.
+     *
+     * @return the cells of the boxes as a bitset indexed by Map.getIndex().
+     */
+    private long[] getOccupied() {
+        if (occupied == null) {
+            occupied = new long[(map.getNumCells() + 63) >>> 6];
+            for (Point box : boxes) {
+                int cell = map.getIndex(box);
+                occupied[cell >>> 6] |= 1L << cell;
+            }
+        }
+        return occupied;
+    }
+
+    /**
+     * Move a box of this state in place, keeping the cells of the boxes in
+     * sync. Used for trying a push and undoing it again, so the boxes need
+     * not stay sorted.
+     *
+     * @param index The index of the box in the array of boxes.
+     * @param to The cell to move the box to, which must be free.
+     */
+    private void moveBox(int index, Point to) {
+        long[] occupied = getOccupied();
+        int cell = map.getIndex(boxes[index]);
+        occupied[cell >>> 6] &= ~(1L << cell);
+        cell = map.getIndex(to);
+        occupied[cell >>> 6] |= 1L << cell;
+        boxes[index] = to;
     }
 
     /**
@@ -236,6 +505,29 @@ public class State {
         return hasBox(map.getPoint(x, y));
     }
 
+    /**
+     * Calculate how badly the boxes in goal rooms break the packing order of
+     * the rooms, i.e. the number of boxes on goals of a room that should be
+     * filled after a goal of the room that still is free.
+     *
+     * @return the packing penalty of this state.
+     */
+    public int getPackingPenalty() {
+        if (packingPenalty == -1) {
+            packingPenalty = 0;
+            for (Map.GoalRoom room : map.getGoalRooms()) {
+                List<Point> slots = room.getSlots();
+                int free = 0;
+                while (free < slots.size() && hasBox(slots.get(free)))
+                    free++;
+                for (int i = free + 1; i < slots.size(); i++)
+                    if (hasBox(slots.get(i)))
+                        packingPenalty++;
+            }
+        }
+        return packingPenalty;
+    }
+
     /**
      * Calculate the score for this state. The score of a state is the sum of
      * the scores of all boxes.
@@ -380,7 +672,20 @@ public class State {
      * @return true iff the movement of the given box in the given direction
      * would result in a locked state.
      */
-    private boolean wouldLock(Point box, Direction direction) {
+    boolean wouldLock(Point box, Direction direction) {
+        return lockReason(box, direction) != null;
+    }
+
+    /**
+     * Check if the movement of the given box in the given direction results in
+     * a lock, and tell which check found it.
+     *
+     * @param box The box to check.
+     * @param direction The direction of movement to move the given box.
+     * @return the reason for the lock, or null if the movement would not
+     * result in a locked state.
+     */
+    private SearchMetrics.Prune lockReason(Point box, Direction direction) {
         int index = 0;
         for (int i = 0; i < boxes.length; i++)
             if (boxes[i] == box)
@@ -388,10 +693,10 @@ public class State {
 
         Point backup = box;
         box = map.getPoint(box.x + direction.dx, box.y + direction.dy);
-        boxes[index] = box;
-        boolean locked = false;
+        moveBox(index, box);
+        SearchMetrics.Prune locked = null;
 
-        for (int dx = -1; !locked && dx <= 1; dx++)
+        for (int dx = -1; locked == null && dx <= 1; dx++)
             for (int dy = -1; dy <= 1; dy++) {
                 Point p = map.getPoint(box.x + dx, box.y + dy);
                 if ((dx == 0 && dy == 0) || start == p || map.isWall(p) ||
@@ -426,24 +731,24 @@ public class State {
                           (map.isWall(p.x+1, p.y+1) || hasBox(p.x+1, p.y+1))) ||
                          ((map.isWall(p.x-1, p.y+1) || hasBox(p.x-1, p.y+1)) &&
                           (map.isWall(p.x+1, p.y-1) || hasBox(p.x+1, p.y-1))))) {
-                    locked = true;
+                    locked = SearchMetrics.Prune.ENCLOSED;
                     break;
                 }
             }
 
-        if (!locked)
+        if (locked == null)
             for (Point neighbor : boxes)
                 if (Math.abs(box.x - neighbor.x) <= 1 &&
                         Math.abs(box.y - neighbor.y) <= 1 &&
                         !map.isGoal(neighbor) && boxIsLocked(neighbor)) {
-                    locked = true;
+                    locked = SearchMetrics.Prune.FROZEN;
                     break;
                 }
 
-        if (!locked && wouldCreateBlockingCycle(box))
-            locked = true;
+        if (locked == null && wouldCreateBlockingCycle(box))
+            locked = SearchMetrics.Prune.BLOCKING_CYCLE;
 
-        boxes[index] = backup;
+        moveBox(index, backup);
 
         return locked;
     }
@@ -527,6 +832,20 @@ public class State {
         return goalDistance;
     }
 
+    /**
+     * A lower bound of the pushes left, i.e. the sum of the push distances of
+     * the boxes. Unlike the goal distance, it never overestimates, and it
+     * drops by at most one with each push.
+     *
+     * @return the sum of the fewest pushes moving each box alone to a goal.
+     */
+    public int getLowerBound() {
+        int bound = 0;
+        for (Point box : boxes)
+            bound += map.getPushDistance(box);
+        return bound;
+    }
+
     /**
      * Finds the minimum path from the point given to any of the points in the
      * given destination set.
@@ -538,27 +857,23 @@ public class State {
      */
     private Entry<Point, Integer> findMinPathLength(Point from,
             Collection<Point> dst) {
-        Queue<Point> queue = new LinkedList<Point>();
-        int[][] visited = new int[map.getNumRows()][map.getNumCols()];
-
         if (dst.contains(from))
             return new SimpleEntry<Point, Integer>(from, 0);
 
-        queue.add(from);
+        BfsWorkspace workspace = BfsWorkspace.get(map.getNumCells());
+        workspace.visit(map.getIndex(from), 0);
 
-        while (!queue.isEmpty()) {
-            Point current = queue.poll();
+        while (!workspace.isEmpty()) {
+            int current = workspace.poll();
+            int distance = workspace.getDistance(current) + 1;
             for (Direction d : Direction.getArray()) {
-                int x = current.x + d.dx;
-                int y = current.y + d.dy;
-                if (visited[y][x] == 0 && !map.isWall(x, y) && !map.isForbidden(x, y)) {
-                    Point to = map.getPoint(x, y);
+                int next = current + map.getOffset(d);
+                Point to = map.getPoint(next);
+                if (!workspace.isVisited(next) && !map.isWall(to) &&
+                        !map.isForbidden(to)) {
                     if (dst.contains(to))
-                        return new SimpleEntry<Point, Integer>(
-                                to, visited[current.y][current.x] + 1);
-
-                    queue.add(to);
-                    visited[y][x] = visited[current.y][current.x] + 1;
+                        return new SimpleEntry<Point, Integer>(to, distance);
+                    workspace.visit(next, distance);
                 }
             }
         }
@@ -572,29 +887,22 @@ public class State {
      * @return the minimum number of steps needed to reach a goal.
      */
     public int getStepsFromGoal() {
-        Queue<Point> queue = new LinkedList<Point>();
-        int[][] visited = new int[map.getNumRows()][map.getNumCols()];
+        BfsWorkspace workspace = BfsWorkspace.get(map.getNumCells());
+        workspace.visit(map.getIndex(start), 0);
 
-        int stepsFromGoal = 0;
-        queue.add(start);
-
-        while (!queue.isEmpty()) {
-            Point current = queue.poll();
-            if (map.isGoal(current)) {
-                stepsFromGoal = visited[current.y][current.x];
-                break;
-            }
+        while (!workspace.isEmpty()) {
+            int current = workspace.poll();
+            if (map.isGoal(map.getPoint(current)))
+                return workspace.getDistance(current);
 
             for (Direction d : Direction.getArray()) {
-                int x = current.x + d.dx;
-                int y = current.y + d.dy;
-                if (visited[y][x] == 0 && !map.isWall(x, y)) {
-                    queue.add(map.getPoint(x, y));
-                    visited[y][x] = visited[current.y][current.x] + 1;
-                }
+                int next = current + map.getOffset(d);
+                if (!workspace.isVisited(next) &&
+                        !map.isWall(map.getPoint(next)))
+                    workspace.visit(next, workspace.getDistance(current) + 1);
             }
         }
-        return stepsFromGoal;
+        return 0;
     }
 
     /**
@@ -607,7 +915,6 @@ public class State {
     @Override
     public String toString() {
         StringBuffer buffer = new StringBuffer(map.getNumRows()*map.getNumCols());
-        Collection<Point> reachable = getReachablePositions();
 
         buffer.append(String.format("score: %d\n", getNumBoxesInGoal()));
         buffer.append(String.format("distance: %d\n", getGoalDistance()));
@@ -620,11 +927,11 @@ public class State {
                 else if (hasBox(p))
                     buffer.append((map.isGoal(p) ? '*' : '$'));
                 else if (map.isGoal(p))
-                    buffer.append((reachable.contains(p) ? '+' : '.'));
+                    buffer.append((isReachable(p) ? '+' : '.'));
                 else if (map.isForbidden(p))
                     buffer.append('x');
                 else
-                    buffer.append((reachable.contains(p) ? ' ' : '-'));
+                    buffer.append((isReachable(p) ? ' ' : '-'));
             }
             buffer.append('\n');
         }
@@ -639,117 +946,165 @@ public class State {
         return (previous != null ? previous.statePath() + "\n" : "") + toString();
     }
 
+    /**
+     * @return the states from the start state to this state, in order.
+     */
+    public State[] getChain() {
+        State[] chain = new State[getNumMoves() + 1];
+        State state = this;
+        for (int i = chain.length - 1; i >= 0; i--) {
+            chain[i] = state;
+            state = state.previous;
+        }
+        return chain;
+    }
+
+    /**
+     * @return the player movements needed to reach this state from the start
+     * state, each given as Direction.ordinal().
+     */
+    public byte[] directionBytes() {
+        return new PathBuilder(map).build(getChain());
+    }
+
     /**
      * @return a list of directions describing the player movements needed to
      * reach this state from the start state.
      */
     public List<Direction> directionPath() {
-        return previous.directionPath(this);
+        byte[] bytes = directionBytes();
+        List<Direction> directions = new ArrayList<Direction>(bytes.length);
+        for (byte b : bytes)
+            directions.add(Direction.getArray()[b]);
+        return directions;
     }
 
     /**
-     * Calculate the movements needed to go from this state to the next state.
-     * Append these movements to the movements needed to go from the start
-     * state to this state.
+     * Create a new state from the given state and the movement described.
      *
-     * @param next The state to reach.
-     * @return the list of directions needed for the player to go from the
-     * start state to this state.
+     * @param from The source state.
+     * @param move The movement to apply on the source state to reach a new
+     * state.
+     * @return the new state resulting from applying move on from.
      */
-    private List<Direction> directionPath(State next) {
-        List<Direction> directions;
-        Point from = null;
-        Point to = null;
-
-        if (previous != null)
-            directions = previous.directionPath(this);
-        else
-            directions = new LinkedList<Direction>();
-
-        for (Point box : boxes)
-            if (!next.hasBox(box)) {
-                from = box;
-                break;
-            }
-
-        for (Point box : next.boxes)
-            if (!hasBox(box)) {
-                to = box;
-                break;
-            }
-
-        int dx = to.x - from.x;
-        int dy = to.y - from.y;
-        directions.addAll(pathSearch(start, map.getPoint(from.x - dx, from.y - dy)));
-
-        for (Direction d : Direction.getArray())
-            if (d.dx == dx && d.dy == dy) {
-                directions.add(d);
-                break;
-            }
-
-        return directions;
+    public static State getStateAfterMove(State from,
+            Entry<Direction, Point> move) {
+        State state = new State(move.getValue(), getBoxesAfterMove(from, move),
+                from.map, from, true);
+        state.setParent(from, getPushedBox(from.map, move));
+        return state;
     }
 
     /**
-     * Search for a path from the Point from to the Point to.
+     * Create a new state from the given state and the movement described,
+     * without linking it to the source state. The source state can be
+     * collected while the new state is kept, e.g. when the path is kept in a
+     * NodeStore.
      *
-     * @param from The start point.
-     * @param to The point to reach.
-     * @return a list of directions for the player to go from the start to the
-     * end of the path.
+     * @param from The source state.
+     * @param move The movement to apply on the source state to reach a new
+     * state.
+     * @return the new state resulting from applying move on from.
      */
-    private List<Direction> pathSearch(Point from, Point to) {
-        Queue<Point> queue = new LinkedList<Point>();
-        Set<Point> visited = new HashSet<Point>();
-        HashMap<Point, Entry<Point, Direction>> traceback =
-            new HashMap<Point, Entry<Point, Direction>>();
-
-        queue.add(from);
-        visited.add(from);
-
-        while (!queue.isEmpty()) {
-            Point current = queue.poll();
+    static State getViewAfterMove(State from, Entry<Direction, Point> move) {
+        State state = new State(move.getValue(), getBoxesAfterMove(from, move),
+                from.map, from.depth + 1);
+        state.setParent(from, getPushedBox(from.map, move));
+        return state;
+    }
 
-            if (current == to) {
-                LinkedList<Direction> directions = new LinkedList<Direction>();
-                while (current != from) {
-                    Entry<Point, Direction> previous = traceback.get(current);
-                    current = previous.getKey();
-                    directions.addFirst(previous.getValue());
-                }
-                return directions;
-            }
+    /**
+     * @param map The map.
+     * @param move A push.
+     * @return the cell the box is pushed to.
+     */
+    private static Point getPushedBox(Map map, Entry<Direction, Point> move) {
+        Direction d = move.getKey();
+        Point box = move.getValue();
+        return map.getPoint(box.x + d.dx, box.y + d.dy);
+    }
 
-            for (Direction d : Direction.getArray()) {
-                Point p = map.getPoint(current.x + d.dx, current.y + d.dy);
-                if (!map.isWall(p) && !hasBox(p) && !visited.contains(p)) {
-                    queue.add(p);
-                    visited.add(p);
-                    traceback.put(p, new SimpleEntry<Point, Direction>(current, d));
+    /**
+     * Create a new state from the given state and a push followed by the
+     * pushes it forces, without linking it to the source state. A box pushed
+     * along a tunnel is pushed on while the player behind it is in the tunnel
+     * as well, since it can then only be pushed back the way it came. It
+     * stops when it leaves the tunnel, reaches a goal or would be pushed onto
+     * a forbidden square. A box pushed onto the entry of a goal room is then
+     * pushed on to the next free slot of the room in packing order, if it can
+     * reach it; otherwise it stays at the entry. The transition may thus move
+     * the box by several pushes, which PathBuilder.unfold() expands again.
+     *
+     * @param from The source state.
+     * @param move The push to apply on the source state.
+     * @return the new state resulting from applying the macro move on from.
+     */
+    static State getViewAfterMacro(State from, Entry<Direction, Point> move) {
+        Map map = from.map;
+        Direction d = move.getKey();
+        Point player = move.getValue();
+        Point box = map.getPoint(player.x + d.dx, player.y + d.dy);
+
+        while (map.isTunnel(box, d) && map.isTunnel(player, d) &&
+                !map.isGoal(box)) {
+            Point next = map.getPoint(box.x + d.dx, box.y + d.dy);
+            if (map.isWall(next) || from.hasBox(next) ||
+                    map.isForbidden(next))
+                break;
+            player = box;
+            box = next;
+        }
+        Point[] boxes = getBoxesAfterMove(from, move.getValue(), box);
+
+        Map.GoalRoom room = map.getGoalRoom(player);
+        if (room != null && room.getEntry() == box) {
+            PathBuilder builder = new PathBuilder(map);
+            builder.setBoard(boxes);
+            for (Point slot : room.getSlots()) {
+                if (slot == box)
+                    break;
+                if (Arrays.binarySearch(boxes, slot) >= 0)
+                    continue;
+                int[] cells = builder.findBoxPath(map.getIndex(box),
+                        map.getIndex(slot), map.getIndex(player));
+                if (cells != null) {
+                    player = map.getPoint(cells[cells.length - 2]);
+                    boxes = getBoxesAfterMove(from, move.getValue(), slot);
                 }
+                break;
             }
         }
-        return null;
+        State state = new State(player, boxes, map, from.depth + 1);
+        if (player == move.getValue() && box == getPushedBox(map, move))
+            state.setParent(from, box);
+        return state;
     }
 
     /**
-     * Create a new state from the given state and the movement described.
+     * Apply a movement to the boxes of a state.
      *
      * @param from The source state.
-     * @param move The movement to apply on the source state to reach a new
-     * state.
-     * @return the new state resulting from applying move on from.
+     * @param move The movement to apply.
+     * @return the sorted boxes after the movement.
      */
-    public static State getStateAfterMove(State from,
+    private static Point[] getBoxesAfterMove(State from,
             Entry<Direction, Point> move) {
-        Direction direction = move.getKey();
-        Point moveBox = move.getValue();
-        Point[] boxes = new Point[from.boxes.length];
+        return getBoxesAfterMove(from, move.getValue(),
+                getPushedBox(from.map, move));
+    }
 
+    /**
+     * Move a box of a state to another cell.
+     *
+     * @param from The source state.
+     * @param moveBox The box to move.
+     * @param newBox The cell the box is moved to.
+     * @return the sorted boxes after the movement.
+     */
+    private static Point[] getBoxesAfterMove(State from, Point moveBox,
+            Point newBox) {
+        Point[] boxes = new Point[from.boxes.length];
         int index = 0;
-        Point newBox = from.map.getPoint(moveBox.x+direction.dx,
-                moveBox.y+direction.dy);
 
         /* Insert boxes in sorted order. */
         for (int i = 0; i < boxes.length; i++) {
@@ -768,7 +1123,7 @@ public class State {
 
         if (newBox != null)
             boxes[index] = newBox;
-        return new State(moveBox, boxes, from.map, from, true);
+        return boxes;
     }
 
     private boolean wouldBeConsistent(Point box, Direction direction) {
@@ -777,9 +1132,10 @@ public class State {
             if (boxes[i] == box)
                 index = i;
 
-        boxes[index] = map.getPoint(box.x + direction.dx, box.y + direction.dy);
+        moveBox(index, map.getPoint(box.x + direction.dx,
+                    box.y + direction.dy));
         boolean consistent = isConsistent();
-        boxes[index] = box;
+        moveBox(index, box);
         return consistent;
     }
 
@@ -789,7 +1145,7 @@ public class State {
      *
      * @return true iff the state is consistent.
      */
-    private boolean isConsistent() {
+    boolean isConsistent() {
         for (int i = 0; i < boxes.length; i++) {
             Point box1 = boxes[i];
             Set<Point> r1 = map.getReachableGoals(box1);
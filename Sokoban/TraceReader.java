@@ -0,0 +1,268 @@
+package Sokoban;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map.Entry;
+
+/**
+ * A reader of traces written by TraceRecorder. The reader rebuilds the search
+ * tree from the parent hashes of the expansions and reports where the search
+ * spent its time:
+ *
+ * - the number of rejected children by reason,
+ * - hot regions, i.e. the subtrees rooted at a fixed depth that got the most
+ *   expansions,
+ * - heuristic plateaus, i.e. the longest runs of expansions during which the
+ *   best heuristic value did not improve.
+ *
+ * States are identified by their hash, so collisions may merge unrelated
+ * states. The reports are statistical and not affected much by this.
+ */
+public class TraceReader {
+    /**
+     * A run of expansions without improvement of the best heuristic value.
+     */
+    static class Plateau {
+        /**
+         * The index of the first expansion of the run.
+         */
+        long start;
+
+        /**
+         * The number of expansions in the run.
+         */
+        long length;
+
+        /**
+         * The best heuristic value during the run.
+         */
+        int h;
+
+        Plateau(long start, long length, int h) {
+            this.start = start;
+            this.length = length;
+            this.h = h;
+        }
+    }
+
+    /**
+     * The depth at which subtrees are rooted in the hot region report.
+     */
+    private int regionDepth;
+
+    /**
+     * The number of expansions.
+     */
+    private long expansions;
+
+    /**
+     * The number of duplicates.
+     */
+    private long duplicates;
+
+    /**
+     * The number of rejected children, indexed by Prune.ordinal().
+     */
+    private long[] prunes;
+
+    /**
+     * The hash of the goal state, or 0 if the goal was not reached.
+     */
+    private int goal;
+
+    /**
+     * The root of the region of each expanded state.
+     */
+    private HashMap<Integer, Integer> regionOf;
+
+    /**
+     * The number of expansions in each region.
+     */
+    private HashMap<Integer, Long> regions;
+
+    /**
+     * The longest plateaus, sorted by decreasing length.
+     */
+    private List<Plateau> plateaus;
+
+    /**
+     * The number of expansions at each depth.
+     */
+    private List<Long> depths;
+
+    /**
+     * Create a new TraceReader.
+     *
+     * @param regionDepth The depth at which hot regions are rooted.
+     */
+    public TraceReader(int regionDepth) {
+        this.regionDepth = regionDepth;
+        prunes = new long[SearchMetrics.Prune.values().length];
+        regionOf = new HashMap<Integer, Integer>();
+        regions = new HashMap<Integer, Long>();
+        plateaus = new ArrayList<Plateau>();
+        depths = new ArrayList<Long>();
+    }
+
+    /**
+     * Read a trace.
+     *
+     * @param path The name of the trace file.
+     */
+    public void read(String path) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+            FileChannel channel = file.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            read(buffer);
+        }
+    }
+
+    /**
+     * Read a trace from a buffer.
+     *
+     * @param buffer The buffer holding the whole trace.
+     */
+    void read(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 8 || buffer.getInt() != TraceRecorder.magic)
+            throw new IOException("not a search trace");
+        if (buffer.getInt() != TraceRecorder.version)
+            throw new IOException("unsupported trace version");
+
+        int bestH = Integer.MAX_VALUE;
+        long plateauStart = 0;
+
+        while (buffer.hasRemaining()) {
+            byte type = buffer.get();
+
+            if (type == TraceRecorder.EXPAND) {
+                int hash = buffer.getInt();
+                int parent = buffer.getInt();
+                int g = buffer.getInt();
+                int h = buffer.getInt();
+
+                addRegion(hash, parent, g);
+                while (depths.size() <= g)
+                    depths.add(0L);
+                depths.set(g, depths.get(g) + 1);
+
+                if (h < bestH) {
+                    addPlateau(plateauStart, expansions - plateauStart, bestH);
+                    bestH = h;
+                    plateauStart = expansions;
+                }
+                expansions++;
+            } else if (type == TraceRecorder.DUPLICATE) {
+                duplicates++;
+            } else if (type == TraceRecorder.GOAL) {
+                goal = buffer.getInt();
+            } else if (type >= TraceRecorder.PRUNE &&
+                    type < TraceRecorder.PRUNE + prunes.length) {
+                prunes[type - TraceRecorder.PRUNE]++;
+            } else {
+                throw new IOException("corrupt trace at " +
+                        (buffer.position() - 1));
+            }
+        }
+        addPlateau(plateauStart, expansions - plateauStart, bestH);
+    }
+
+    /**
+     * Count an expansion in its region.
+     */
+    private void addRegion(int hash, int parent, int g) {
+        Integer root = g <= regionDepth ? Integer.valueOf(hash) :
+            regionOf.get(parent);
+        if (root == null)
+            root = parent;
+        regionOf.put(hash, root);
+        Long count = regions.get(root);
+        regions.put(root, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Keep a plateau if it is among the ten longest.
+     */
+    private void addPlateau(long start, long length, int h) {
+        if (length <= 0)
+            return;
+        plateaus.add(new Plateau(start, length, h));
+        Collections.sort(plateaus, new Comparator<Plateau>() {
+            public int compare(Plateau a, Plateau b) {
+                return Long.compare(b.length, a.length);
+            }
+        });
+        if (plateaus.size() > 10)
+            plateaus.remove(plateaus.size() - 1);
+    }
+
+    /**
+     * @return a report of the trace.
+     */
+    public String report() {
+        StringBuffer buffer = new StringBuffer();
+        buffer.append(String.format("expansions: %d, distinct states: %d, " +
+                    "duplicates: %d, goal reached: %b\n", expansions,
+                    regionOf.size(), duplicates, goal != 0));
+
+        buffer.append("rejected children:\n");
+        for (SearchMetrics.Prune reason : SearchMetrics.Prune.values())
+            buffer.append(String.format("  %-15s %10d\n",
+                        reason.name().toLowerCase(), prunes[reason.ordinal()]));
+
+        buffer.append("expansions by depth:\n");
+        for (int g = 0; g < depths.size(); g++)
+            if (depths.get(g) > 0)
+                buffer.append(String.format("  %4d %10d\n", g, depths.get(g)));
+
+        List<Entry<Integer, Long>> hot =
+            new ArrayList<Entry<Integer, Long>>(regions.entrySet());
+        Collections.sort(hot, new Comparator<Entry<Integer, Long>>() {
+            public int compare(Entry<Integer, Long> a, Entry<Integer, Long> b) {
+                return Long.compare(b.getValue(), a.getValue());
+            }
+        });
+        buffer.append(String.format("hot regions rooted at depth %d:\n",
+                    regionDepth));
+        for (int i = 0; i < hot.size() && i < 10; i++)
+            buffer.append(String.format("  %08x %10d (%.1f%%)\n",
+                        hot.get(i).getKey(), hot.get(i).getValue(),
+                        100.0 * hot.get(i).getValue() / Math.max(1, expansions)));
+
+        buffer.append("longest heuristic plateaus:\n");
+        for (Plateau plateau : plateaus)
+            buffer.append(String.format("  from expansion %d, %d expansions " +
+                        "at h = %d\n", plateau.start, plateau.length,
+                        plateau.h));
+        return buffer.toString();
+    }
+
+    /**
+     * Print a report of a trace. Usage:
+     *
+     * TraceReader <trace> [region depth]
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("usage: TraceReader <trace> [region depth]");
+            System.exit(1);
+        }
+
+        TraceReader reader = new TraceReader(
+                args.length > 1 ? Integer.parseInt(args[1]) : 5);
+        try {
+            reader.read(args[0]);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        System.out.print(reader.report());
+    }
+}
@@ -0,0 +1,196 @@
+package Sokoban;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A recorder of search traces. Each expansion is written to a compact binary
+ * log, followed by one record for each rejected child. Records are collected
+ * in a small buffer and copied in batches into a memory mapped file, which is
+ * grown one region at a time.
+ *
+ * The log starts with the magic number and the version, and then holds the
+ * following records:
+ *
+ * EXPAND     the byte 0, then the hash, the parent hash, g and h of the
+ *            expanded state as ints.
+ * PRUNE      the byte 0x10 + Prune.ordinal().
+ * DUPLICATE  the byte 0x20.
+ * GOAL       the byte 0x30, then the hash of the goal state as an int.
+ *
+ * A TraceRecorder is not thread safe and is meant for a single search.
+ */
+public class TraceRecorder implements PruneListener, Closeable {
+    /**
+     * The magic number at the start of each trace.
+     */
+    static final int magic = 0x534b5452;
+
+    /**
+     * The version of the trace format.
+     */
+    static final int version = 1;
+
+    /**
+     * The record types.
+     */
+    static final byte EXPAND = 0x00;
+    static final byte PRUNE = 0x10;
+    static final byte DUPLICATE = 0x20;
+    static final byte GOAL = 0x30;
+
+    /**
+     * The size of each mapped region of the file.
+     */
+    static final int regionSize = 64 << 20;
+
+    /**
+     * The file written to.
+     */
+    private RandomAccessFile file;
+
+    /**
+     * The channel of the file.
+     */
+    private FileChannel channel;
+
+    /**
+     * The currently mapped region of the file.
+     */
+    private MappedByteBuffer region;
+
+    /**
+     * The position in the file of the currently mapped region.
+     */
+    private long regionStart;
+
+    /**
+     * The buffer records are collected in before being copied to the file.
+     */
+    private ByteBuffer batch;
+
+    /**
+     * The listener pruned pushes are forwarded to, or null.
+     */
+    private PruneListener next;
+
+    /**
+     * Create a new TraceRecorder.
+     *
+     * @param path The name of the file to write the trace to.
+     */
+    public TraceRecorder(String path) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        regionStart = 0;
+        region = channel.map(FileChannel.MapMode.READ_WRITE, 0, regionSize);
+        batch = ByteBuffer.allocate(64 << 10);
+        batch.putInt(magic);
+        batch.putInt(version);
+    }
+
+    /**
+     * Set the listener that pruned pushes are forwarded to after being
+     * recorded.
+     *
+     * @param next The listener to forward to, or null.
+     */
+    public void setNext(PruneListener next) {
+        this.next = next;
+    }
+
+    /**
+     * Record an expansion.
+     *
+     * @param hash The hash of the expanded state.
+     * @param parent The hash of the parent of the state, or 0.
+     * @param g The number of pushes to reach the state.
+     * @param h The heuristic value of the state.
+     */
+    public void expanded(int hash, int parent, int g, int h) {
+        reserve(17);
+        batch.put(EXPAND);
+        batch.putInt(hash);
+        batch.putInt(parent);
+        batch.putInt(g);
+        batch.putInt(h);
+    }
+
+    public void pruned(SearchMetrics.Prune reason) {
+        reserve(1);
+        batch.put((byte)(PRUNE + reason.ordinal()));
+        if (next != null)
+            next.pruned(reason);
+    }
+
+    /**
+     * Record a child that was already in the closed set.
+     */
+    public void duplicate() {
+        reserve(1);
+        batch.put(DUPLICATE);
+    }
+
+    /**
+     * Record that the goal was reached.
+     *
+     * @param hash The hash of the goal state.
+     */
+    public void goal(int hash) {
+        reserve(5);
+        batch.put(GOAL);
+        batch.putInt(hash);
+    }
+
+    /**
+     * Make sure the batch has room for a record, flushing it if needed.
+     *
+     * @param size The size of the record.
+     */
+    private void reserve(int size) {
+        if (batch.remaining() < size)
+            flush();
+    }
+
+    /**
+     * Copy the batch to the mapped file.
+     */
+    private void flush() {
+        batch.flip();
+        while (batch.hasRemaining()) {
+            if (!region.hasRemaining()) {
+                try {
+                    regionStart += region.position();
+                    region = channel.map(FileChannel.MapMode.READ_WRITE,
+                            regionStart, regionSize);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            int length = Math.min(batch.remaining(), region.remaining());
+            int limit = batch.limit();
+            batch.limit(batch.position() + length);
+            region.put(batch);
+            batch.limit(limit);
+        }
+        batch.clear();
+    }
+
+    /**
+     * Flush the remaining records and truncate the file to the written size.
+     */
+    public void close() throws IOException {
+        flush();
+        long size = regionStart + region.position();
+        region.force();
+        region = null;
+        channel.truncate(size);
+        file.close();
+    }
+}
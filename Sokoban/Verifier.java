@@ -0,0 +1,239 @@
+package Sokoban;
+
+import java.util.List;
+
+/**
+ * A class for verifying solutions locally. A solution is replayed move by
+ * move on a flat copy of the board, without any allocations per move.
+ *
+ * A Verifier is not thread safe, but it can be reused for any number of
+ * solutions of its map.
+ */
+public class Verifier {
+    /**
+     * Flags used in the flat board.
+     */
+    private static final byte WALL = 1;
+    private static final byte GOAL = 2;
+    private static final byte BOX = 4;
+
+    /**
+     * The result of a verification.
+     */
+    public static class Result {
+        /**
+         * The index of the first illegal move, or -1 if all moves are legal.
+         */
+        final int illegalMove;
+
+        /**
+         * The number of box pushes performed.
+         */
+        final int pushes;
+
+        /**
+         * The number of player moves performed, including pushes.
+         */
+        final int moves;
+
+        /**
+         * Tells whether all boxes were on goal squares after the last move.
+         */
+        final boolean goalReached;
+
+        /**
+         * Create a new Result.
+         *
+         * @param illegalMove The index of the first illegal move, or -1.
+         * @param pushes The number of box pushes performed.
+         * @param moves The number of player moves performed.
+         * @param goalReached true iff the goal was reached.
+         */
+        public Result(int illegalMove, int pushes, int moves,
+                boolean goalReached) {
+            this.illegalMove = illegalMove;
+            this.pushes = pushes;
+            this.moves = moves;
+            this.goalReached = goalReached;
+        }
+
+        /**
+         * @return the index of the first illegal move, or -1 if all moves are
+         * legal.
+         */
+        public int getIllegalMove() {
+            return illegalMove;
+        }
+
+        /**
+         * @return the number of box pushes performed.
+         */
+        public int getNumPushes() {
+            return pushes;
+        }
+
+        /**
+         * @return the number of player moves performed, including pushes.
+         */
+        public int getNumMoves() {
+            return moves;
+        }
+
+        /**
+         * @return true iff all boxes were on goal squares after the last move.
+         */
+        public boolean isGoalReached() {
+            return goalReached;
+        }
+
+        /**
+         * @return true iff all moves are legal and the goal was reached.
+         */
+        public boolean isSolution() {
+            return illegalMove == -1 && goalReached;
+        }
+
+        @Override
+        public String toString() {
+            if (illegalMove != -1)
+                return String.format("illegal move: %d, pushes: %d, " +
+                        "moves: %d", illegalMove, pushes, moves);
+            return String.format("goal reached: %b, pushes: %d, moves: %d",
+                    goalReached, pushes, moves);
+        }
+    }
+
+    /**
+     * The map to verify solutions of.
+     */
+    private Map map;
+
+    /**
+     * The board at the start of the map.
+     */
+    private byte[] initial;
+
+    /**
+     * The board used when replaying a solution.
+     */
+    private byte[] board;
+
+    /**
+     * The cell index offset of each direction, indexed by ordinal.
+     */
+    private int[] offsets;
+
+    /**
+     * Create a new Verifier.
+     *
+     * @param map The map to verify solutions of.
+     */
+    public Verifier(Map map) {
+        this.map = map;
+        initial = new byte[map.getNumCells()];
+        board = new byte[map.getNumCells()];
+        offsets = new int[Direction.getArray().length];
+
+        for (int y = 0; y < map.getNumRows(); y++)
+            for (int x = 0; x < map.getNumCols(); x++) {
+                int index = map.getIndex(x, y);
+                if (map.isWall(x, y))
+                    initial[index] |= WALL;
+                if (map.isGoal(x, y))
+                    initial[index] |= GOAL;
+            }
+
+        for (Point box : map.getBoxes())
+            initial[map.getIndex(box)] |= BOX;
+
+        for (Direction d : Direction.getArray())
+            offsets[d.ordinal()] = map.getOffset(d);
+    }
+
+    /**
+     * Replay a solution given as a list of directions.
+     *
+     * @param path The player movements.
+     * @return the result of the replay.
+     */
+    public Result verify(List<Direction> path) {
+        reset();
+        int player = map.getIndex(map.getStart());
+        int pushes = 0;
+        int moves = 0;
+
+        for (Direction d : path) {
+            int to = step(player, offsets[d.ordinal()]);
+            if (to < 0)
+                return new Result(moves, pushes, moves, false);
+            if (to >= board.length)
+                pushes++;
+            player = to % board.length;
+            moves++;
+        }
+        return new Result(-1, pushes, moves, isGoalReached());
+    }
+
+    /**
+     * Replay a solution given as an array of direction ordinals.
+     *
+     * @param path The player movements, each given as Direction.ordinal().
+     * @param length The number of movements to replay.
+     * @return the result of the replay.
+     */
+    public Result verify(byte[] path, int length) {
+        reset();
+        int player = map.getIndex(map.getStart());
+        int pushes = 0;
+
+        for (int i = 0; i < length; i++) {
+            int to = step(player, offsets[path[i]]);
+            if (to < 0)
+                return new Result(i, pushes, i, false);
+            if (to >= board.length)
+                pushes++;
+            player = to % board.length;
+        }
+        return new Result(-1, pushes, length, isGoalReached());
+    }
+
+    /**
+     * Restore the board to the start of the map.
+     */
+    private void reset() {
+        System.arraycopy(initial, 0, board, 0, board.length);
+    }
+
+    /**
+     * Move the player one step, pushing a box if there is one in the way.
+     *
+     * @param player The cell index of the player.
+     * @param offset The cell index offset of the movement.
+     * @return the new cell index of the player, increased by the number of
+     * cells if a box was pushed, or -1 if the move is illegal.
+     */
+    private int step(int player, int offset) {
+        int to = player + offset;
+        if ((board[to] & WALL) != 0)
+            return -1;
+        if ((board[to] & BOX) == 0)
+            return to;
+
+        int next = to + offset;
+        if ((board[next] & (WALL | BOX)) != 0)
+            return -1;
+        board[to] &= ~BOX;
+        board[next] |= BOX;
+        return to + board.length;
+    }
+
+    /**
+     * @return true iff all boxes on the board are on goal squares.
+     */
+    private boolean isGoalReached() {
+        for (int i = 0; i < board.length; i++)
+            if ((board[i] & (BOX | GOAL)) == BOX)
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,70 @@
+package Sokoban;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Map.Entry;
+
+/**
+ * Fixtures shared by the benchmarks. All fixtures are drawn from the levels
+ * in samples.server, so the benchmarks must be run from the project
+ * directory.
+ */
+public class Fixtures {
+    /**
+     * The collection file the fixtures are drawn from.
+     */
+    static final String file = "samples.server";
+
+    /**
+     * Get the string representation of a level.
+     *
+     * @param id The number of the level.
+     * @return the level as a string.
+     */
+    public static String level(int id) {
+        String mapString = Puzzle.getPuzzleFromFile(file, id);
+        if (mapString == null)
+            throw new IllegalArgumentException("no level " + id + " in " + file);
+        return mapString;
+    }
+
+    /**
+     * Collect states of a map in breadth first order from the start state.
+     * The same states are returned on every call.
+     *
+     * @param map The map to collect states of.
+     * @param count The maximum number of states to collect.
+     * @return the collected states.
+     */
+    public static State[] states(Map map, int count) {
+        List<State> states = new ArrayList<State>(count);
+        Set<State> seen = new HashSet<State>();
+        State start = new State(map.getStart(), map.getBoxes(), map);
+
+        states.add(start);
+        seen.add(start);
+
+        for (int i = 0; i < states.size() && states.size() < count; i++)
+            for (Entry<Direction, Point> move : states.get(i).getAvailableMoves()) {
+                State next = State.getStateAfterMove(states.get(i), move);
+                if (states.size() < count && seen.add(next))
+                    states.add(next);
+            }
+
+        return states.toArray(new State[0]);
+    }
+
+    /**
+     * Create a copy of a state without any cached values, so that lazily
+     * evaluated values are recomputed.
+     *
+     * @param state The state to copy.
+     * @return a fresh copy of the state.
+     */
+    public static State fresh(State state) {
+        return new State(state.getPlayer(), state.getBoxes().clone(),
+                state.getMap(), null, true);
+    }
+}
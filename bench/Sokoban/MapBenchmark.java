@@ -0,0 +1,60 @@
+package Sokoban;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of parsing a map and of the precomputation done for each map.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MapBenchmark {
+    /**
+     * The levels of samples.server to benchmark.
+     */
+    @Param({"2", "4", "10", "19"})
+    int level;
+
+    String mapString;
+    Map map;
+
+    @Setup
+    public void setup() {
+        mapString = Fixtures.level(level);
+        map = Map.parse(mapString);
+    }
+
+    /**
+     * Parsing includes the precomputation below.
+     */
+    @Benchmark
+    public Map parse() {
+        return Map.parse(mapString);
+    }
+
+    @Benchmark
+    public Set<Point>[][] findReachableGoals() {
+        return map.findReachableGoals();
+    }
+
+    @Benchmark
+    public float[][] findScores() {
+        return map.findScores();
+    }
+}
@@ -0,0 +1,451 @@
+package Sokoban;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Properties;
+
+/**
+ * An end to end benchmark of the solver. The levels of a fixed, versioned
+ * corpus are solved in-process after a warm-up, and the statistics of each
+ * level are written to a CSV file. The results can be compared to a stored
+ * baseline, in which case every metric that is worse than the baseline by more
+ * than a threshold is reported as a regression.
+ *
+ * The corpus is a properties file with the following keys:
+ *
+ * version  The version of the corpus. Only results of the same version are
+ *          compared.
+ * file     The collection file to read levels from.
+ * levels   A comma separated list of level numbers.
+ * limit    The time limit for each level, in milliseconds.
+ * warmup   The number of times to solve the corpus before measuring.
+ */
+public class SolverBenchmark {
+    /**
+     * The header of the result files.
+     */
+    static final String header = "level,solved,time,expanded," +
+        "expanded_per_sec,max_open,max_closed,allocated,pushes,moves";
+
+    /**
+     * Metrics are not compared if the baseline value is smaller than this, to
+     * avoid reporting noise on trivial levels.
+     */
+    static final long minCompared = 50;
+
+    /**
+     * The statistics of a single level.
+     */
+    static class Result {
+        int level;
+        boolean solved;
+        long time;
+        long expanded;
+        long expandedPerSec;
+        long maxOpen;
+        long maxClosed;
+        long allocated;
+        long pushes;
+        long moves;
+
+        /**
+         * @return this result as a line of CSV.
+         */
+        String toCsv() {
+            return String.format("%d,%b,%d,%d,%d,%d,%d,%d,%d,%d", level,
+                    solved, time, expanded, expandedPerSec, maxOpen, maxClosed,
+                    allocated, pushes, moves);
+        }
+
+        /**
+         * Parse a result from a line of CSV.
+         *
+         * @param line The line to parse.
+         * @return the parsed result.
+         */
+        static Result parse(String line) {
+            String[] fields = line.split(",");
+            Result result = new Result();
+            result.level = Integer.parseInt(fields[0]);
+            result.solved = Boolean.parseBoolean(fields[1]);
+            result.time = Long.parseLong(fields[2]);
+            result.expanded = Long.parseLong(fields[3]);
+            result.expandedPerSec = Long.parseLong(fields[4]);
+            result.maxOpen = Long.parseLong(fields[5]);
+            result.maxClosed = Long.parseLong(fields[6]);
+            result.allocated = Long.parseLong(fields[7]);
+            result.pushes = Long.parseLong(fields[8]);
+            result.moves = Long.parseLong(fields[9]);
+            return result;
+        }
+    }
+
+    /**
+     * A measurement of the heap allocated by all threads of the JVM, such as
+     * the workers of a decomposition or of a parallel search, not only the
+     * thread that solves the level. Threads are sampled periodically while
+     * the level is solved, so a thread that ends before the measurement does
+     * is counted up to its last sample.
+     */
+    static class AllocationMeter implements Runnable {
+        /**
+         * The time between samples, in milliseconds.
+         */
+        static final long period = 5;
+
+        /**
+         * The bean the allocation of each thread is read from.
+         */
+        private final com.sun.management.ThreadMXBean threads;
+
+        /**
+         * The bytes allocated by each thread when the measurement started.
+         */
+        private final HashMap<Long, Long> start;
+
+        /**
+         * The bytes allocated by each thread when it was last sampled.
+         */
+        private final HashMap<Long, Long> last;
+
+        /**
+         * The thread taking the samples, whose own allocation is not counted.
+         */
+        private Thread sampler;
+
+        /**
+         * Tells whether the sampler should keep sampling.
+         */
+        private volatile boolean running;
+
+        /**
+         * Create a new AllocationMeter.
+         */
+        AllocationMeter() {
+            threads = (com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean();
+            start = new HashMap<Long, Long>();
+            last = new HashMap<Long, Long>();
+        }
+
+        /**
+         * Start measuring.
+         */
+        void start() {
+            start.clear();
+            last.clear();
+            sample(start);
+            running = true;
+            sampler = new Thread(this, "allocation sampler");
+            sampler.setDaemon(true);
+            sampler.start();
+        }
+
+        /**
+         * Take samples until the measurement is stopped.
+         */
+        public void run() {
+            while (running) {
+                synchronized (this) {
+                    sample(last);
+                }
+                try {
+                    Thread.sleep(period);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Stop measuring.
+         *
+         * @return the bytes allocated by all threads since the start.
+         */
+        long stop() {
+            running = false;
+            sampler.interrupt();
+            try {
+                sampler.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            long allocated = 0;
+            synchronized (this) {
+                sample(last);
+                last.remove(sampler.getId());
+                for (java.util.Map.Entry<Long, Long> entry : last.entrySet()) {
+                    Long before = start.get(entry.getKey());
+                    allocated += entry.getValue() -
+                        (before == null ? 0 : before);
+                }
+            }
+            return allocated;
+        }
+
+        /**
+         * Record the bytes allocated by each live thread.
+         *
+         * @param into The map to record them in, by thread id.
+         */
+        private void sample(HashMap<Long, Long> into) {
+            long[] ids = threads.getAllThreadIds();
+            long[] bytes = threads.getThreadAllocatedBytes(ids);
+            for (int i = 0; i < ids.length; i++)
+                if (bytes[i] >= 0)
+                    into.put(ids[i], bytes[i]);
+        }
+    }
+
+    /**
+     * The corpus being benchmarked.
+     */
+    private Properties corpus;
+
+    /**
+     * The measurement of the allocation of each level.
+     */
+    private AllocationMeter meter;
+
+    /**
+     * Create a new SolverBenchmark.
+     *
+     * @param corpus The corpus to benchmark.
+     */
+    public SolverBenchmark(Properties corpus) {
+        this.corpus = corpus;
+        meter = new AllocationMeter();
+    }
+
+    /**
+     * @return the version of the corpus.
+     */
+    public String getVersion() {
+        return corpus.getProperty("version");
+    }
+
+    /**
+     * Solve a single level and measure it.
+     *
+     * @param level The number of the level.
+     * @param config The options to solve with.
+     * @return the statistics of the level.
+     */
+    Result run(int level, SolverConfig config) {
+        String mapString = Puzzle.getPuzzleFromFile(
+                corpus.getProperty("file"), level);
+        if (mapString == null)
+            throw new IllegalArgumentException("no level " + level);
+
+        Map map = Map.parse(mapString);
+        meter.start();
+        SolveResult solved = Solver.solve(map, config);
+        long allocated = meter.stop();
+
+        Result result = new Result();
+        result.level = level;
+        result.solved = solved.isSolved();
+        result.time = solved.getTime();
+        result.expanded = solved.getNumExpanded();
+        result.expandedPerSec = solved.getNumExpanded() * 1000L /
+            Math.max(1, solved.getTime());
+        result.maxOpen = solved.getMaxOpen();
+        result.maxClosed = solved.getMaxClosed();
+        result.allocated = allocated;
+        result.pushes = solved.getNumPushes();
+        result.moves = solved.getNumMoves();
+        return result;
+    }
+
+    /**
+     * Run the whole corpus, including the warm-up.
+     *
+     * @return the statistics of each level of the corpus.
+     */
+    public List<Result> run() {
+        SolverConfig config = new SolverConfig.Builder()
+            .timeLimit(Integer.parseInt(corpus.getProperty("limit", "60000")))
+            .build();
+        int warmup = Integer.parseInt(corpus.getProperty("warmup", "1"));
+        List<Integer> levels = new ArrayList<Integer>();
+        for (String level : corpus.getProperty("levels").split(","))
+            levels.add(Integer.parseInt(level.trim()));
+
+        for (int i = 0; i < warmup; i++)
+            for (int level : levels)
+                run(level, config);
+
+        List<Result> results = new ArrayList<Result>();
+        for (int level : levels) {
+            Result result = run(level, config);
+            System.err.println(result.toCsv());
+            results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * Write results to a file.
+     *
+     * @param file The name of the file.
+     * @param version The version of the corpus.
+     * @param results The results to write.
+     */
+    static void write(String file, String version, List<Result> results)
+            throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+            out.println("# corpus version " + version);
+            out.println(header);
+            for (Result result : results)
+                out.println(result.toCsv());
+        }
+    }
+
+    /**
+     * Read results from a file.
+     *
+     * @param file The name of the file.
+     * @param version The expected version of the corpus.
+     * @return the results of the file, by level.
+     */
+    static HashMap<Integer, Result> read(String file, String version)
+            throws IOException {
+        HashMap<Integer, Result> results = new HashMap<Integer, Result>();
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            String line = in.readLine();
+            if (line == null || !line.equals("# corpus version " + version))
+                throw new IOException(file + " is not of corpus version " +
+                        version);
+            in.readLine();
+            while ((line = in.readLine()) != null)
+                if (line.length() > 0) {
+                    Result result = Result.parse(line);
+                    results.put(result.level, result);
+                }
+        }
+        return results;
+    }
+
+    /**
+     * Compare results to a baseline and report the regressions.
+     *
+     * @param results The current results.
+     * @param baseline The baseline results, by level.
+     * @param threshold The allowed relative change, e.g. 0.1 for 10%.
+     * @param out The stream to report to.
+     * @return the number of regressions.
+     */
+    static int compare(List<Result> results, HashMap<Integer, Result> baseline,
+            double threshold, PrintWriter out) {
+        int regressions = 0;
+
+        for (Result current : results) {
+            Result base = baseline.get(current.level);
+            if (base == null) {
+                out.printf("level %d: not in baseline\n", current.level);
+                continue;
+            }
+
+            if (base.solved && !current.solved) {
+                out.printf("level %d: REGRESSION no longer solved\n",
+                        current.level);
+                regressions++;
+                continue;
+            }
+
+            regressions += compare(current.level, "time", base.time,
+                    current.time, threshold, true, out);
+            regressions += compare(current.level, "expanded", base.expanded,
+                    current.expanded, threshold, true, out);
+            regressions += compare(current.level, "expanded_per_sec",
+                    base.expandedPerSec, current.expandedPerSec, threshold,
+                    false, out);
+            regressions += compare(current.level, "allocated", base.allocated,
+                    current.allocated, threshold, true, out);
+        }
+
+        out.printf("%d regressions beyond %.0f%%\n", regressions,
+                threshold * 100);
+        out.flush();
+        return regressions;
+    }
+
+    /**
+     * Compare a single metric to the baseline.
+     *
+     * @return 1 if the metric regressed, 0 otherwise.
+     */
+    private static int compare(int level, String metric, long base,
+            long current, double threshold, boolean lowerIsBetter,
+            PrintWriter out) {
+        if (base < minCompared)
+            return 0;
+
+        double change = (double)(current - base) / base;
+        boolean regressed = lowerIsBetter ? change > threshold :
+            -change > threshold;
+        if (regressed || Math.abs(change) > threshold)
+            out.printf("level %d: %s%s %d -> %d (%+.1f%%)\n", level,
+                    regressed ? "REGRESSION " : "", metric, base, current,
+                    change * 100);
+        return regressed ? 1 : 0;
+    }
+
+    /**
+     * Run the benchmark. Usage:
+     *
+     * SolverBenchmark <corpus> [-o results] [-b baseline] [-t threshold]
+     *
+     * The threshold is given in percent. The exit status is 1 if any
+     * regressions were found.
+     */
+    public static void main(String[] args) throws IOException {
+        String output = "build/bench-results.csv";
+        String baselineFile = null;
+        double threshold = 0.1;
+
+        if (args.length < 1 || args.length % 2 != 1) {
+            System.err.println("usage: SolverBenchmark <corpus> " +
+                    "[-o results] [-b baseline] [-t threshold]");
+            System.exit(1);
+        }
+
+        for (int i = 1; i < args.length; i += 2) {
+            if (args[i].equals("-o"))
+                output = args[i+1];
+            else if (args[i].equals("-b"))
+                baselineFile = args[i+1];
+            else if (args[i].equals("-t"))
+                threshold = Double.parseDouble(args[i+1]) / 100;
+            else {
+                System.err.println("Invalid option specified.");
+                System.exit(1);
+            }
+        }
+
+        Properties corpus = new Properties();
+        try (FileReader reader = new FileReader(args[0])) {
+            corpus.load(reader);
+        }
+
+        SolverBenchmark benchmark = new SolverBenchmark(corpus);
+        List<Result> results = benchmark.run();
+        write(output, benchmark.getVersion(), results);
+
+        if (baselineFile != null) {
+            HashMap<Integer, Result> baseline =
+                read(baselineFile, benchmark.getVersion());
+            int regressions = compare(results, baseline, threshold,
+                    new PrintWriter(System.out));
+            System.exit(regressions > 0 ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package Sokoban;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of the hot paths of State. Each invocation works on the next
+ * state of a fixed sample of states from the level, so that the results cover
+ * more than one box formation.
+ *
+ * Benchmarks named fresh* work on a copy of the state without cached values,
+ * which is what the search sees for every new child.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StateBenchmark {
+    /**
+     * The levels of samples.server to draw states from.
+     */
+    @Param({"2", "4", "10", "19"})
+    int level;
+
+    /**
+     * The number of sampled states.
+     */
+    @Param({"256"})
+    int count;
+
+    Sokoban.State[] states;
+    List<List<Entry<Direction, Point>>> moves;
+    int next;
+
+    @Setup
+    public void setup() {
+        Map map = Map.parse(Fixtures.level(level));
+        states = Fixtures.states(map, count);
+        moves = new ArrayList<List<Entry<Direction, Point>>>();
+        for (Sokoban.State state : states)
+            moves.add(state.getAvailableMoves());
+        next = 0;
+    }
+
+    /**
+     * @return the index of the next sampled state to use.
+     */
+    private int nextIndex() {
+        if (++next == states.length)
+            next = 0;
+        return next;
+    }
+
+    @Benchmark
+    public List<Entry<Direction, Point>> freshGetAvailableMoves() {
+        return Fixtures.fresh(states[nextIndex()]).getAvailableMoves();
+    }
+
+    @Benchmark
+    public void getStateAfterMove(Blackhole bh) {
+        int i = nextIndex();
+        for (Entry<Direction, Point> move : moves.get(i))
+            bh.consume(Sokoban.State.getStateAfterMove(states[i], move));
+    }
+
+    @Benchmark
+    public int freshHashCode() {
+        return Fixtures.fresh(states[nextIndex()]).hashCode();
+    }
+
+    @Benchmark
+    public int hashCodeCached() {
+        return states[nextIndex()].hashCode();
+    }
+
+    @Benchmark
+    public boolean freshEquals() {
+        int i = nextIndex();
+        return Fixtures.fresh(states[i]).equals(Fixtures.fresh(states[i]));
+    }
+
+    @Benchmark
+    public int freshGetGoalDistance() {
+        return Fixtures.fresh(states[nextIndex()]).getGoalDistance();
+    }
+
+    @Benchmark
+    public boolean isConsistent() {
+        return states[nextIndex()].isConsistent();
+    }
+
+    @Benchmark
+    public void wouldLock(Blackhole bh) {
+        int i = nextIndex();
+        for (Entry<Direction, Point> move : moves.get(i))
+            bh.consume(states[i].wouldLock(move.getValue(), move.getKey()));
+    }
+}